@@ -1,7 +1,14 @@
 import java.util.Scanner;
 import java.util.ArrayList;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
 import javafx.stage.Stage;
 import javafx.scene.Scene;
 import javafx.scene.layout.*;
@@ -43,10 +50,25 @@ class InventoryFullException extends Exception {
 //Product Class
 class Product{
 
+    //Quantity is read and changed through this handle so stock moves are atomic without locking
+    private static final java.lang.invoke.VarHandle QUANTITY;
+    //Price is published with release/acquire so a lock-free reader sees an update made under a stripe lock
+    private static final java.lang.invoke.VarHandle PRICE;
+    static {
+        try {
+            QUANTITY = java.lang.invoke.MethodHandles.lookup().findVarHandle(Product.class, "quantity", int.class);
+            PRICE = java.lang.invoke.MethodHandles.lookup().findVarHandle(Product.class, "price", double.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     private int productId;
     private String productName;
     private double price;
     private int quantity;
+    //Epoch of the ProductStorage allowed to change this product in place; 0 until one stores it
+    volatile int ownerEpoch;
 
     public Product(int productId, String productName, double price, int quantity) {
         this.productId = productId;
@@ -55,154 +77,6547 @@ class Product{
         this.quantity = quantity;
     }
 
-    public int getProductId(){
-        return productId;
-    }
-    public void setProductId(int productId){
-        this.productId = productId;
+    public int getProductId(){
+        return productId;
+    }
+    public void setProductId(int productId){
+        this.productId = productId;
+    }
+
+    public String getProductName(){
+        return productName;
+    }
+    public void setProductName(String productName){
+        this.productName = productName;
+    }
+
+    public double getPrice(){
+        return (double) PRICE.getAcquire(this);
+    }
+    public void setPrice(double price){
+        PRICE.setRelease(this, price);
+    }
+
+    public int getQuantity(){
+        return (int) QUANTITY.getVolatile(this);
+    }
+    public void setQuantity(int quantity){
+        QUANTITY.setVolatile(this, quantity);
+    }
+
+    public boolean compareAndSetQuantity(int expected, int newQuantity) {
+        return QUANTITY.compareAndSet(this, expected, newQuantity);
+    }
+
+    //Returns the new quantity, or -1 (leaving stock unchanged) if it would go negative
+    public int tryAdjustQuantity(int delta) {
+        while (true) {
+            int current = getQuantity();
+            int next = Math.addExact(current, delta);
+            if (next < 0) return -1;
+            if (compareAndSetQuantity(current, next)) return next;
+        }
+    }
+
+    //Checked stock moves behind both managers' adjustQuantity, reserve and compareAndSetQuantity
+    public int adjustStock(int delta) throws InvalidInputException {
+        int next;
+        try {
+            next = tryAdjustQuantity(delta);
+        } catch (ArithmeticException e) {
+            throw new InvalidInputException("Quantity is out of range.");
+        }
+        if (next < 0)
+            throw new InvalidInputException("Quantity cannot be negative.");
+        return next;
+    }
+
+    //Returns the quantity left, or -1 if fewer than n are in stock
+    public int reserveStock(int n) throws InvalidInputException {
+        if (n < 0)
+            throw new InvalidInputException("Reserved quantity cannot be negative.");
+        return tryAdjustQuantity(-n);
+    }
+
+    public boolean compareAndSetStock(int expected, int newQuantity) throws InvalidInputException {
+        if (newQuantity < 0)
+            throw new InvalidInputException("Quantity cannot be negative.");
+        return compareAndSetQuantity(expected, newQuantity);
+    }
+
+    //Detached copy with the same id and current values
+    public Product copy() {
+        return new Product(productId, productName, getPrice(), getQuantity());
+    }
+
+    public void displayProductInfo() {
+        StringBuilder sb = new StringBuilder();
+        appendInfo(sb);
+        System.out.print(sb);
+    }
+
+    public void appendInfo(StringBuilder sb) {
+        sb.append("Product ID: ").append(productId).append('\n');
+        sb.append("Name: ").append(productName).append('\n');
+        sb.append("Price: ").append(getPrice()).append('\n');
+        sb.append("Quantity: ").append(getQuantity()).append('\n');
+    }
+}
+
+//Perishable Product Class
+class PerishableProduct extends Product {
+    static final int UNKNOWN_EXPIRY = Integer.MIN_VALUE;
+    //No ISO date maps to this day, so it can mark a date that has not been parsed yet
+    private static final int NOT_PARSED = Integer.MIN_VALUE + 1;
+
+    private String expiryDate;
+    private int expiryDay = NOT_PARSED;
+
+    public PerishableProduct(int productId, String productName, double price, int quantity, String expiryDate) {
+        super(productId, productName, price, quantity);
+        this.expiryDate = expiryDate;
+    }
+
+    public String getExpiryDate(){
+        return expiryDate;
+    }
+    //Once a manager stores the product, listeners such as ExpiryIndex must hear of a new date, so it can only change
+    //through InventoryManager.updateExpiryDate
+    public void setExpiryDate(String expiryDate) {
+        if (ownerEpoch != 0)
+            throw new IllegalStateException("Product " + getProductId() + " is stored; change its expiry through the manager.");
+        changeExpiryDate(expiryDate);
+    }
+
+    void changeExpiryDate(String expiryDate) {
+        this.expiryDate = expiryDate;
+        this.expiryDay = NOT_PARSED;
+    }
+
+    //Parsed on first use, so imports, replays and copies never pay for it; UNKNOWN_EXPIRY when the text is not an ISO date.
+    //Threads that race here parse the same text to the same day
+    public int getExpiryDay() {
+        int day = expiryDay;
+        if (day == NOT_PARSED) {
+            day = toEpochDay(expiryDate);
+            expiryDay = day;
+        }
+        return day;
+    }
+
+    static int toEpochDay(String expiryDate) {
+        if (expiryDate == null) return UNKNOWN_EXPIRY;
+        try {
+            java.time.LocalDate d = java.time.LocalDate.parse(expiryDate.trim());
+            if (d.getYear() < 1 || d.getYear() > 9999) return UNKNOWN_EXPIRY;
+            return (int) d.toEpochDay();
+        } catch (java.time.format.DateTimeParseException e) {
+            return UNKNOWN_EXPIRY;
+        }
+    }
+
+    @Override
+    public Product copy() {
+        PerishableProduct copy = new PerishableProduct(getProductId(), getProductName(), getPrice(), getQuantity(), expiryDate);
+        copy.expiryDay = expiryDay;
+        return copy;
+    }
+
+    public void appendInfo(StringBuilder sb) {
+        super.appendInfo(sb);
+        sb.append("Expiry Date: ").append(expiryDate).append('\n');
+    }
+}
+
+//Inventory Listener (no-op unless overridden)
+interface InventoryListener {
+    //Lets a listener refuse a product before the manager changes anything
+    default void checkProduct(Product product) throws InvalidInputException {}
+    //Lets a listener that stores products refuse a change adding this many before anything changes, such as a file out of room
+    default void checkRoom(int products) throws InvalidInputException {}
+    default void productAdded(Product product) {}
+    default void productUpdated(Product product, double oldPrice, int oldQuantity) {}
+    default void productRemoved(Product product) {}
+    //Runs on the changing thread once the change has reached every listener and the next one may be delivered;
+    //a listener that has to wait for its own work, such as a write reaching disk, waits here
+    default void changeDelivered() {}
+}
+
+class ConsoleInventoryListener implements InventoryListener {
+
+    private final java.io.PrintStream out;
+
+    public ConsoleInventoryListener() {
+        this(System.out);
+    }
+
+    public ConsoleInventoryListener(java.io.PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void productAdded(Product product) {
+        out.println("Product added successfully!");
+    }
+
+    @Override
+    public void productUpdated(Product product, double oldPrice, int oldQuantity) {
+        out.println("Product updated.");
+    }
+
+    @Override
+    public void productRemoved(Product product) {
+        out.println("Product deleted successfully.");
+    }
+}
+
+//Product ID Index (open addressing, int keys -> storage slot)
+class ProductIdIndex {
+
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private int[] slots;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public ProductIdIndex(int expectedSize) {
+        int cap = 16;
+        while (cap * 0.6 < expectedSize) cap <<= 1;
+        allocate(cap);
+    }
+
+    private void allocate(int cap) {
+        keys = new int[cap];
+        slots = new int[cap];
+        java.util.Arrays.fill(slots, EMPTY);
+        mask = cap - 1;
+        resizeAt = (int) (cap * 0.6);
+    }
+
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    public int get(int key) {
+        int i = hash(key) & mask;
+        while (slots[i] != EMPTY) {
+            if (keys[i] == key) return slots[i];
+            i = (i + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    public boolean contains(int key) {
+        return get(key) != EMPTY;
+    }
+
+    public void ensureCapacity(int expectedSize) {
+        int cap = keys.length;
+        while (cap * 0.6 < expectedSize) cap <<= 1;
+        if (cap != keys.length) rehash(cap);
+    }
+
+    public void put(int key, int slot) {
+        int i = hash(key) & mask;
+        while (slots[i] != EMPTY) {
+            if (keys[i] == key) {
+                slots[i] = slot;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        slots[i] = slot;
+        if (++size > resizeAt) rehash(keys.length << 1);
+    }
+
+    public int remove(int key) {
+        int i = hash(key) & mask;
+        while (slots[i] != EMPTY) {
+            if (keys[i] == key) {
+                int removed = slots[i];
+                shiftBack(i);
+                size--;
+                return removed;
+            }
+            i = (i + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    //Backward-shift deletion keeps probe chains intact without tombstones
+    private void shiftBack(int gap) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            if (slots[i] == EMPTY) break;
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                slots[gap] = slots[i];
+                gap = i;
+            }
+        }
+        slots[gap] = EMPTY;
+    }
+
+    private void rehash(int newCap) {
+        int[] oldKeys = keys;
+        int[] oldSlots = slots;
+        allocate(newCap);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldSlots[i] == EMPTY) continue;
+            int j = hash(oldKeys[i]) & mask;
+            while (slots[j] != EMPTY) j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            slots[j] = oldSlots[i];
+        }
+    }
+
+    public void clear() {
+        java.util.Arrays.fill(slots, EMPTY);
+        size = 0;
+    }
+
+    //Visits keys in table order until the action returns false
+    public boolean forEachKey(java.util.function.IntPredicate action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (slots[i] != EMPTY && !action.test(keys[i])) return false;
+        }
+        return true;
+    }
+
+    //Lazily, in table order; the index must not change while the stream is consumed
+    public java.util.stream.IntStream keys() {
+        int[] k = keys;
+        int[] s = slots;
+        return java.util.stream.IntStream.range(0, k.length).filter(i -> s[i] != EMPTY).map(i -> k[i]);
+    }
+}
+
+//Product Storage (chunked, grows without copying stored products)
+class ProductStorage {
+
+    static final int CHUNK_SHIFT = 10;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    //Epochs are unique across storages, so a product another storage stamped is never taken as owned here
+    private static final java.util.concurrent.atomic.AtomicInteger NEXT_EPOCH = new java.util.concurrent.atomic.AtomicInteger();
+
+    //Volatile so a stock thread that finds a directory cloned by another one also sees its contents
+    private volatile Product[][] chunks;
+    private int chunkCount;
+    private int size;
+
+    //Copy-on-write: a snapshot shares the directory, chunks and products as they are; the writer copies a chunk
+    //the first time it touches it after a snapshot and clones a product the first time it changes one.
+    //A product is owned, and so changeable in place, while its ownerEpoch matches the storage's epoch.
+    private int epoch;
+    private int[] chunkEpochs;
+    private boolean directoryShared;
+
+    public ProductStorage(int initialCapacity) {
+        int needed = Math.max(1, (initialCapacity + CHUNK_MASK) >>> CHUNK_SHIFT);
+        epoch = NEXT_EPOCH.incrementAndGet();
+        chunks = new Product[Math.max(needed, 4)][];
+        chunkEpochs = new int[chunks.length];
+        for (int i = 0; i < needed; i++) {
+            chunks[i] = new Product[CHUNK_SIZE];
+            chunkEpochs[i] = epoch;
+        }
+        chunkCount = needed;
+    }
+
+    //Read-only view for a snapshot
+    private ProductStorage(Product[][] chunks, int chunkCount, int size) {
+        this.chunks = chunks;
+        this.chunkCount = chunkCount;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return chunkCount << CHUNK_SHIFT;
+    }
+
+    public Product get(int slot) {
+        return chunks[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+    }
+
+    public void set(int slot, Product p) {
+        writableChunk(slot >>> CHUNK_SHIFT)[slot & CHUNK_MASK] = p;
+    }
+
+    //Ownership travels with the product, so a moved one still knows whether a snapshot shares it
+    public void move(int from, int to) {
+        set(to, get(from));
+    }
+
+    //The product at the slot, cloned first if a snapshot still shares it, so it can be changed in place.
+    //Several threads may call this at once as long as nothing else changes the storage meanwhile;
+    //only the clone takes the storage's monitor, and each product is cloned at most once per snapshot.
+    public Product getWritable(int slot) {
+        Product p = get(slot);
+        if (p != null && p.ownerEpoch == epoch) return p;
+        synchronized (this) {
+            p = get(slot);
+            if (p.ownerEpoch == epoch) return p;
+            Product copy = p.copy();
+            copy.ownerEpoch = epoch;
+            writableChunk(slot >>> CHUNK_SHIFT)[slot & CHUNK_MASK] = copy;
+            return copy;
+        }
+    }
+
+    //O(1): nothing is copied until the writer next touches a chunk or product
+    public ProductStorage snapshot() {
+        directoryShared = true;
+        epoch = NEXT_EPOCH.incrementAndGet();
+        return new ProductStorage(chunks, chunkCount, size);
+    }
+
+    //A product some storage already held may still be shared with a snapshot, so only a fresh one starts out owned
+    public int add(Product p) {
+        int slot = size;
+        if (slot == capacity()) addChunk();
+        if (p.ownerEpoch == 0) p.ownerEpoch = epoch;
+        set(slot, p);
+        size++;
+        return slot;
+    }
+
+    public Product removeLast() {
+        int slot = --size;
+        Product p = get(slot);
+        set(slot, null);
+        return p;
+    }
+
+    public void truncate(int newSize) {
+        for (int slot = newSize; slot < size; slot++) set(slot, null);
+        size = newSize;
+    }
+
+    //For a tail the caller has already emptied
+    public void shrink(int newSize) {
+        size = newSize;
+    }
+
+    private Product[] writableChunk(int c) {
+        if (chunkEpochs[c] != epoch) {
+            if (directoryShared) {
+                chunks = chunks.clone();
+                directoryShared = false;
+            }
+            chunks[c] = chunks[c].clone();
+            chunkEpochs[c] = epoch;
+        }
+        return chunks[c];
+    }
+
+    //Only the chunk directory is ever copied, never the chunks themselves (unless a snapshot shares them)
+    private void addChunk() {
+        if (chunkCount == chunks.length) {
+            chunks = java.util.Arrays.copyOf(chunks, chunks.length << 1);
+            chunkEpochs = java.util.Arrays.copyOf(chunkEpochs, chunks.length);
+            directoryShared = false;
+        } else if (directoryShared) {
+            chunks = chunks.clone();
+            directoryShared = false;
+        }
+        chunks[chunkCount] = new Product[CHUNK_SIZE];
+        chunkEpochs[chunkCount] = epoch;
+        chunkCount++;
+    }
+}
+
+//Batch Operations
+class ProductUpdate {
+
+    private final int productId;
+    private final Double newPrice;
+    private final Integer newQty;
+
+    public ProductUpdate(int productId, Double newPrice, Integer newQty) {
+        this.productId = productId;
+        this.newPrice = newPrice;
+        this.newQty = newQty;
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    public Double getNewPrice() {
+        return newPrice;
+    }
+
+    public Integer getNewQty() {
+        return newQty;
+    }
+}
+
+class BatchResult {
+
+    enum Status { OK, DUPLICATE, NOT_FOUND, INVALID, FULL }
+
+    private final Status[] statuses;
+    private final String[] messages;
+    private int failureCount;
+    private boolean applied;
+
+    BatchResult(int size) {
+        statuses = new Status[size];
+        messages = new String[size];
+        java.util.Arrays.fill(statuses, Status.OK);
+    }
+
+    void fail(int item, Status status, String message) {
+        if (statuses[item] == Status.OK) failureCount++;
+        statuses[item] = status;
+        messages[item] = message;
+    }
+
+    void markApplied() {
+        applied = true;
+    }
+
+    public int size() {
+        return statuses.length;
+    }
+
+    //All items were applied; when false, nothing in the batch was applied
+    public boolean isApplied() {
+        return applied;
+    }
+
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    public Status getStatus(int item) {
+        return statuses[item];
+    }
+
+    public String getMessage(int item) {
+        return messages[item];
+    }
+}
+
+//Delete Modes
+enum DeleteMode {
+    //Moves the last product into the freed slot. Constant time, does not keep insertion order.
+    SWAP_REMOVE,
+    //Leaves an empty slot that is compacted later. Constant time amortized, keeps insertion order.
+    TOMBSTONE
+}
+
+//Inventory (the manager contract every storage layout offers: lookups, changes, atomic stock moves,
+//listeners and a capacity limit)
+interface Inventory {
+
+    int getCount();
+
+    int getCapacityLimit();
+
+    void addInventoryListener(InventoryListener listener);
+
+    void removeInventoryListener(InventoryListener listener);
+
+    void addProduct(Product product) throws DuplicateProductException, InventoryFullException, InvalidInputException;
+
+    //Null when no product has the ID
+    Product findProductNull(int id);
+
+    Product searchProductById(int id) throws ProductNotFoundException;
+
+    void updateProductById(int id, Double newPrice, Integer newQty) throws ProductNotFoundException, InvalidInputException;
+
+    int adjustQuantity(int id, int delta) throws ProductNotFoundException, InvalidInputException;
+
+    boolean reserve(int id, int n) throws ProductNotFoundException, InvalidInputException;
+
+    boolean compareAndSetQuantity(int id, int expected, int newQty) throws ProductNotFoundException, InvalidInputException;
+
+    void deleteProductById(int id) throws ProductNotFoundException;
+
+    void forEach(java.util.function.Consumer<Product> action);
+}
+
+//Inventory Manager Class
+class InventoryManager implements Inventory {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 50;
+    private static final int MIN_TOMBSTONES_TO_COMPACT = 64;
+    //Slots a compaction pass examines per deleted product, so no single delete pays for the whole pass
+    private static final int COMPACTION_SLOTS_PER_DELETE = 32;
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private ProductStorage products;
+    private int count;
+    private int capacityLimit;
+    private ProductIdIndex index;
+    private DeleteMode deleteMode;
+    private volatile InventoryListener[] listeners = new InventoryListener[0];
+    //Stock moves may come from any thread and share the read lock; everything else that changes storage, and
+    //snapshot(), takes the write lock, so no stock move can straddle a snapshot. Listeners run after unlocking.
+    private final java.util.concurrent.locks.ReentrantReadWriteLock lock = new java.util.concurrent.locks.ReentrantReadWriteLock();
+    //Held from a change's commit until every listener has seen it, so events arrive one at a time and in commit
+    //order even when stock moves come from many threads; taken before the read/write lock, never after
+    private final java.util.concurrent.locks.ReentrantLock eventOrder = new java.util.concurrent.locks.ReentrantLock();
+
+    private long compactionCount;
+    private long compactionNanos;
+    private long compactedSlots;
+    //Pass in progress: slots below compactDst are packed, compactSrc is the next one to examine, -1 when idle
+    private int compactSrc = -1;
+    private int compactDst;
+
+    public InventoryManager(){
+        this(DEFAULT_INITIAL_CAPACITY, UNLIMITED, DeleteMode.TOMBSTONE);
+    }
+
+    public InventoryManager(int initialCapacity){
+        this(initialCapacity, UNLIMITED, DeleteMode.TOMBSTONE);
+    }
+
+    public InventoryManager(int initialCapacity, int capacityLimit){
+        this(initialCapacity, capacityLimit, DeleteMode.TOMBSTONE);
+    }
+
+    public InventoryManager(int initialCapacity, int capacityLimit, DeleteMode deleteMode){
+        if (initialCapacity < 0 || capacityLimit <= 0)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        products = new ProductStorage(Math.min(initialCapacity, capacityLimit));
+        count = 0;
+        this.capacityLimit = capacityLimit;
+        this.deleteMode = deleteMode;
+        index = new ProductIdIndex(Math.min(initialCapacity, capacityLimit));
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public int getCapacityLimit() {
+        return capacityLimit;
+    }
+
+    //Waits out stock moves already under way, so each change is seen by every listener or by none
+    @Override
+    public void addInventoryListener(InventoryListener listener) {
+        eventOrder.lock();
+        lock.writeLock().lock();
+        try {
+            InventoryListener[] next = java.util.Arrays.copyOf(listeners, listeners.length + 1);
+            next[next.length - 1] = listener;
+            listeners = next;
+        } finally {
+            lock.writeLock().unlock();
+            eventOrder.unlock();
+        }
+    }
+
+    @Override
+    public void removeInventoryListener(InventoryListener listener) {
+        eventOrder.lock();
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] == listener) {
+                    InventoryListener[] next = new InventoryListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, next, 0, i);
+                    System.arraycopy(listeners, i + 1, next, i, next.length - i);
+                    listeners = next;
+                    return;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+            eventOrder.unlock();
+        }
+    }
+
+    private void endDelivery() {
+        eventOrder.unlock();
+        for (InventoryListener l : listeners) l.changeDelivered();
+    }
+
+    private void fireAdded(Product p) {
+        for (InventoryListener l : listeners) l.productAdded(p);
+    }
+
+    private void fireUpdated(Product p, double oldPrice, int oldQuantity) {
+        for (InventoryListener l : listeners) l.productUpdated(p, oldPrice, oldQuantity);
+    }
+
+    private void fireRemoved(Product p) {
+        for (InventoryListener l : listeners) l.productRemoved(p);
+    }
+
+    public DeleteMode getDeleteMode() {
+        return deleteMode;
+    }
+
+    public long getCompactionCount() {
+        return compactionCount;
+    }
+
+    public long getCompactionNanos() {
+        return compactionNanos;
+    }
+
+    public long getCompactedSlots() {
+        return compactedSlots;
+    }
+
+    @Override
+    public Product findProductNull(int id) {
+        int slot = index.get(id);
+        return slot < 0 ? null : products.get(slot);
+    }
+
+    //Point-in-time, read-only view in O(1); call it from the thread that changes the manager
+    public InventorySnapshot snapshot() {
+        lock.writeLock().lock();
+        try {
+            return new InventorySnapshot(products.snapshot(), count);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int slotOf(int id) throws ProductNotFoundException {
+        int slot = index.get(id);
+        if (slot < 0)
+            throw new ProductNotFoundException("Product with ID " + id + " not found.");
+        return slot;
+    }
+
+    @Override
+    public void addProduct(Product product) throws DuplicateProductException, InventoryFullException, InvalidInputException {
+
+        if (index.contains(product.getProductId())) {
+            throw new DuplicateProductException("Product with ID " + product.getProductId() + " already exists.");
+        }
+
+        if (count >= capacityLimit) {
+            throw new InventoryFullException("Inventory is full. Cannot add more products.");
+        }
+
+        for (InventoryListener l : listeners) l.checkProduct(product);
+        for (InventoryListener l : listeners) l.checkRoom(1);
+
+        eventOrder.lock();
+        try {
+            lock.writeLock().lock();
+            try {
+                index.put(product.getProductId(), products.add(product));
+                count++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            fireAdded(product);
+        } finally {
+            endDelivery();
+        }
+    }
+
+    public BatchResult addAll(java.util.Collection<? extends Product> batch) {
+        BatchResult result = new BatchResult(batch.size());
+        ProductIdIndex seen = new ProductIdIndex(batch.size());
+        int room = capacityLimit - count;
+        int i = 0;
+        String refusal;
+        for (Product p : batch) {
+            if (p == null) {
+                result.fail(i, BatchResult.Status.INVALID, "Product cannot be null.");
+            } else if (index.contains(p.getProductId()) || seen.contains(p.getProductId())) {
+                result.fail(i, BatchResult.Status.DUPLICATE, "Product with ID " + p.getProductId() + " already exists.");
+            } else if ((refusal = listenerRefusal(p)) != null) {
+                result.fail(i, BatchResult.Status.INVALID, refusal);
+            } else {
+                seen.put(p.getProductId(), i);
+                if (seen.size() > room)
+                    result.fail(i, BatchResult.Status.FULL, "Inventory is full. Cannot add more products.");
+            }
+            i++;
+        }
+        if (result.getFailureCount() == 0 && (refusal = roomRefusal(batch.size())) != null)
+            for (i = 0; i < batch.size(); i++) result.fail(i, BatchResult.Status.FULL, refusal);
+        if (result.getFailureCount() == 0) insertAll(batch, result);
+        return result;
+    }
+
+    //For a batch whose IDs the caller has already checked against the manager and each other, with nothing
+    //added since, such as ParallelCsvImporter after its parallel pass; only capacity and listeners are checked here
+    BatchResult addAllChecked(java.util.Collection<? extends Product> batch) {
+        BatchResult result = new BatchResult(batch.size());
+        int room = capacityLimit - count;
+        int i = 0;
+        String refusal;
+        for (Product p : batch) {
+            if (listeners.length > 0 && (refusal = listenerRefusal(p)) != null)
+                result.fail(i, BatchResult.Status.INVALID, refusal);
+            else if (i >= room)
+                result.fail(i, BatchResult.Status.FULL, "Inventory is full. Cannot add more products.");
+            i++;
+        }
+        if (result.getFailureCount() == 0 && (refusal = roomRefusal(batch.size())) != null)
+            for (i = 0; i < batch.size(); i++) result.fail(i, BatchResult.Status.FULL, refusal);
+        if (result.getFailureCount() == 0) insertAll(batch, result);
+        return result;
+    }
+
+    private void insertAll(java.util.Collection<? extends Product> batch, BatchResult result) {
+        eventOrder.lock();
+        try {
+            lock.writeLock().lock();
+            try {
+                index.ensureCapacity(count + batch.size());
+                for (Product p : batch) index.put(p.getProductId(), products.add(p));
+                count += batch.size();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            result.markApplied();
+            if (listeners.length > 0) for (Product p : batch) fireAdded(p);
+        } finally {
+            endDelivery();
+        }
+    }
+
+    private String listenerRefusal(Product p) {
+        try {
+            for (InventoryListener l : listeners) l.checkProduct(p);
+            return null;
+        } catch (InvalidInputException e) {
+            return e.getMessage();
+        }
+    }
+
+    private String roomRefusal(int products) {
+        try {
+            for (InventoryListener l : listeners) l.checkRoom(products);
+            return null;
+        } catch (InvalidInputException e) {
+            return e.getMessage();
+        }
+    }
+
+    //Prints from a snapshot, so stock moves on other threads cannot show up halfway through the listing
+    public void viewAllProducts(){
+        StringBuilder sb = new StringBuilder();
+        int[] n = {0};
+        snapshot().forEach(p -> {
+            sb.append("---Product ").append(++n[0]).append("---\n");
+            p.appendInfo(sb);
+            sb.append('\n');
+        });
+        System.out.print(sb);
+    }
+
+    @Override
+    public Product searchProductById(int id) throws ProductNotFoundException {
+        Product p = findProductNull(id);
+        if (p == null)
+            throw new ProductNotFoundException("Product with ID " + id + " not found.");
+        return p;
+    }
+
+    //Visits products in storage order
+    @Override
+    public void forEach(java.util.function.Consumer<Product> action) {
+        for (int i = 0; i < products.size(); i++) {
+            Product p = products.get(i);
+            if (p != null) action.accept(p);
+        }
+    }
+
+    //Storage-order stream over the slot range, so parallel() splits it without copying
+    public java.util.stream.Stream<Product> stream() {
+        return java.util.stream.IntStream.range(0, products.size()).mapToObj(products::get).filter(java.util.Objects::nonNull);
+    }
+
+
+    @Override
+    public void updateProductById(int id, Double newPrice, Integer newQty) throws ProductNotFoundException, InvalidInputException {
+
+        int slot = slotOf(id);
+
+        if (newPrice != null && newPrice < 0)
+            throw new InvalidInputException("Price cannot be negative.");
+
+        if (newQty != null && newQty < 0)
+            throw new InvalidInputException("Quantity cannot be negative.");
+
+        eventOrder.lock();
+        try {
+            Product p;
+            double oldPrice;
+            int oldQty;
+            lock.writeLock().lock();
+            try {
+                p = products.getWritable(slot);
+                oldPrice = p.getPrice();
+                oldQty = p.getQuantity();
+                if (newPrice != null) p.setPrice(newPrice);
+                if (newQty != null) p.setQuantity(newQty);
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            fireUpdated(p, oldPrice, oldQty);
+        } finally {
+            endDelivery();
+        }
+    }
+
+    //Fires productUpdated like any other change, so indexes keyed on the date move the product
+    public void updateExpiryDate(int id, String expiryDate) throws ProductNotFoundException, InvalidInputException {
+
+        int slot = slotOf(id);
+
+        if (!(products.get(slot) instanceof PerishableProduct))
+            throw new InvalidInputException("Product with ID " + id + " is not perishable.");
+
+        if (expiryDate == null || expiryDate.trim().isEmpty())
+            throw new InvalidInputException("Expiry date required for perishable product.");
+
+        Product changed = products.get(slot).copy();
+        ((PerishableProduct) changed).changeExpiryDate(expiryDate);
+        for (InventoryListener l : listeners) l.checkProduct(changed);
+
+        eventOrder.lock();
+        try {
+            Product p;
+            double oldPrice;
+            int oldQty;
+            lock.writeLock().lock();
+            try {
+                p = products.getWritable(slot);
+                oldPrice = p.getPrice();
+                oldQty = p.getQuantity();
+                ((PerishableProduct) p).changeExpiryDate(expiryDate);
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            fireUpdated(p, oldPrice, oldQty);
+        } finally {
+            endDelivery();
+        }
+    }
+
+    public BatchResult updateAll(java.util.Collection<ProductUpdate> batch) {
+        BatchResult result = new BatchResult(batch.size());
+        int[] slots = new int[batch.size()];
+        int i = 0;
+        for (ProductUpdate u : batch) {
+            slots[i] = index.get(u.getProductId());
+            if (slots[i] < 0)
+                result.fail(i, BatchResult.Status.NOT_FOUND, "Product with ID " + u.getProductId() + " not found.");
+            else if (u.getNewPrice() != null && u.getNewPrice() < 0)
+                result.fail(i, BatchResult.Status.INVALID, "Price cannot be negative.");
+            else if (u.getNewQty() != null && u.getNewQty() < 0)
+                result.fail(i, BatchResult.Status.INVALID, "Quantity cannot be negative.");
+            i++;
+        }
+        if (result.getFailureCount() > 0) return result;
+
+        Product[] updated = new Product[batch.size()];
+        double[] oldPrices = new double[updated.length];
+        int[] oldQtys = new int[updated.length];
+        eventOrder.lock();
+        try {
+            lock.writeLock().lock();
+            try {
+                i = 0;
+                for (ProductUpdate u : batch) {
+                    Product p = products.getWritable(slots[i]);
+                    updated[i] = p;
+                    oldPrices[i] = p.getPrice();
+                    oldQtys[i] = p.getQuantity();
+                    if (u.getNewPrice() != null) p.setPrice(u.getNewPrice());
+                    if (u.getNewQty() != null) p.setQuantity(u.getNewQty());
+                    i++;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            result.markApplied();
+            for (i = 0; i < updated.length; i++) fireUpdated(updated[i], oldPrices[i], oldQtys[i]);
+        } finally {
+            endDelivery();
+        }
+        return result;
+    }
+
+    @Override
+    public int adjustQuantity(int id, int delta) throws ProductNotFoundException, InvalidInputException {
+        return moveStock(id, delta, p -> p.adjustStock(delta));
+    }
+
+    @Override
+    public boolean reserve(int id, int n) throws ProductNotFoundException, InvalidInputException {
+        return moveStock(id, -n, p -> p.reserveStock(n)) >= 0;
+    }
+
+    @Override
+    public boolean compareAndSetQuantity(int id, int expected, int newQty) throws ProductNotFoundException, InvalidInputException {
+        return moveStock(id, newQty - expected, p -> p.compareAndSetStock(expected, newQty) ? newQty : -1) >= 0;
+    }
+
+    private interface StockMove {
+        //The new quantity, or -1 if the move did not happen
+        int apply(Product p) throws InvalidInputException;
+    }
+
+    //Without listeners stock moves only share the read lock. With them, each move is delivered before the next
+    //commits, and the event carries a copy holding the quantity this move left, not the live product.
+    private int moveStock(int id, int change, StockMove move) throws ProductNotFoundException, InvalidInputException {
+        if (listeners.length == 0) {
+            lock.readLock().lock();
+            try {
+                if (listeners.length == 0) return move.apply(products.getWritable(slotOf(id)));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        eventOrder.lock();
+        try {
+            Product event;
+            int next;
+            lock.readLock().lock();
+            try {
+                Product p = products.getWritable(slotOf(id));
+                next = move.apply(p);
+                if (next < 0) return next;
+                event = p.copy();
+            } finally {
+                lock.readLock().unlock();
+            }
+            fireUpdated(event, event.getPrice(), next - change);
+            return next;
+        } finally {
+            endDelivery();
+        }
+    }
+
+    @Override
+    public void deleteProductById(int id) throws ProductNotFoundException {
+
+        eventOrder.lock();
+        try {
+            Product removed;
+            lock.writeLock().lock();
+            try {
+                int idx = index.remove(id);
+                if (idx == -1)
+                    throw new ProductNotFoundException("Product with ID " + id + " not found.");
+
+                removed = products.get(idx);
+                removeSlot(idx);
+                compactIfSparse(1);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            fireRemoved(removed);
+        } finally {
+            endDelivery();
+        }
+    }
+
+    public BatchResult deleteAll(int[] ids) {
+        BatchResult result = new BatchResult(ids.length);
+        ProductIdIndex seen = new ProductIdIndex(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            if (!index.contains(ids[i]))
+                result.fail(i, BatchResult.Status.NOT_FOUND, "Product with ID " + ids[i] + " not found.");
+            else if (seen.contains(ids[i]))
+                result.fail(i, BatchResult.Status.DUPLICATE, "Product with ID " + ids[i] + " is listed more than once.");
+            else
+                seen.put(ids[i], i);
+        }
+        if (result.getFailureCount() > 0) return result;
+
+        eventOrder.lock();
+        try {
+            Product[] removed = new Product[listeners.length > 0 ? ids.length : 0];
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < ids.length; i++) {
+                    int idx = index.remove(ids[i]);
+                    if (removed.length > 0) removed[i] = products.get(idx);
+                    removeSlot(idx);
+                }
+                compactIfSparse(ids.length);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            result.markApplied();
+            for (Product p : removed) fireRemoved(p);
+        } finally {
+            endDelivery();
+        }
+        return result;
+    }
+
+    private void removeSlot(int idx) {
+        if (deleteMode == DeleteMode.SWAP_REMOVE) {
+            int last = products.size() - 1;
+            if (idx != last) {
+                products.move(last, idx);
+                index.put(products.get(idx).getProductId(), idx);
+            }
+            products.removeLast();
+        } else {
+            products.set(idx, null);
+            while (products.size() > 0 && products.get(products.size() - 1) == null) products.removeLast();
+        }
+        count--;
+    }
+
+    //Starts a pass once tombstones outnumber live products, then advances it a bounded step per delete
+    private void compactIfSparse(int deletes) {
+        if (compactSrc < 0) {
+            int tombstones = products.size() - count;
+            if (tombstones < MIN_TOMBSTONES_TO_COMPACT || tombstones <= count) return;
+            compactSrc = 0;
+            compactDst = 0;
+        }
+        compactStep((long) deletes * COMPACTION_SLOTS_PER_DELETE);
+    }
+
+    //Slides live products over tombstones, keeping their relative order; finishes any pass in progress
+    public void compact() {
+        lock.writeLock().lock();
+        try {
+            if (compactSrc < 0) {
+                if (products.size() == count) return;
+                compactSrc = 0;
+                compactDst = 0;
+            }
+            compactStep(Long.MAX_VALUE);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compactStep(long budget) {
+        long start = System.nanoTime();
+        int src = compactSrc;
+        int dst = compactDst;
+        int end = (int) Math.min(products.size(), src + budget);
+        for (; src < end; src++) {
+            Product p = products.get(src);
+            if (p == null) continue;
+            if (src != dst) {
+                products.move(src, dst);
+                products.set(src, null);
+                index.put(p.getProductId(), dst);
+                compactedSlots++;
+            }
+            dst++;
+        }
+        compactSrc = src;
+        compactDst = dst;
+        //Everything from dst up is empty by now; trailing deletes may even have trimmed below it
+        if (src >= products.size()) {
+            products.shrink(Math.min(dst, products.size()));
+            compactSrc = -1;
+            compactionCount++;
+        }
+        compactionNanos += System.nanoTime() - start;
+    }
+}
+
+//Inventory Snapshot (point-in-time and read-only; readable from any thread while the manager keeps changing)
+class InventorySnapshot {
+
+    private final ProductStorage products;
+    private final int count;
+    private ProductIdIndex index;
+
+    InventorySnapshot(ProductStorage products, int count) {
+        this.products = products;
+        this.count = count;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void forEach(java.util.function.Consumer<Product> action) {
+        for (int i = 0; i < products.size(); i++) {
+            Product p = products.get(i);
+            if (p != null) action.accept(p);
+        }
+    }
+
+    public java.util.stream.Stream<Product> stream() {
+        return java.util.stream.IntStream.range(0, products.size()).mapToObj(products::get).filter(java.util.Objects::nonNull);
+    }
+
+    //The first lookup indexes the snapshot once, on the reader's thread rather than the writer's
+    public synchronized Product findProductNull(int id) {
+        if (index == null) {
+            ProductIdIndex built = new ProductIdIndex(count);
+            for (int i = 0; i < products.size(); i++) {
+                Product p = products.get(i);
+                if (p != null) built.put(p.getProductId(), i);
+            }
+            index = built;
+        }
+        int slot = index.get(id);
+        return slot < 0 ? null : products.get(slot);
+    }
+}
+
+//Concurrent Inventory Manager Class
+class ConcurrentInventoryManager {
+
+    //Marks a deleted table slot so lock-free probes keep walking past it
+    private static final Product DELETED = new Product(0, "", 0, 0);
+    private static final int MIN_TABLE_SIZE = 16;
+
+    private static class Stripe {
+        final java.util.concurrent.locks.ReentrantLock lock = new java.util.concurrent.locks.ReentrantLock();
+        volatile java.util.concurrent.atomic.AtomicReferenceArray<Product> table;
+        int live;
+        int used;
+
+        Stripe(int tableSize) {
+            table = new java.util.concurrent.atomic.AtomicReferenceArray<>(tableSize);
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+    private final int capacityLimit;
+    private final java.util.concurrent.atomic.AtomicInteger count = new java.util.concurrent.atomic.AtomicInteger();
+
+    public ConcurrentInventoryManager() {
+        this(Runtime.getRuntime().availableProcessors() * 4, 0, InventoryManager.UNLIMITED);
+    }
+
+    public ConcurrentInventoryManager(int concurrencyLevel, int initialCapacity, int capacityLimit) {
+        if (concurrencyLevel <= 0 || initialCapacity < 0 || capacityLimit <= 0)
+            throw new IllegalArgumentException("Concurrency level and capacity must be positive.");
+        int stripeCount = 1;
+        while (stripeCount < concurrencyLevel) stripeCount <<= 1;
+        stripes = new Stripe[stripeCount];
+        stripeShift = 32 - Integer.numberOfTrailingZeros(stripeCount);
+        int perStripe = tableSizeFor(Math.min(initialCapacity, capacityLimit) / stripeCount);
+        for (int i = 0; i < stripeCount; i++) stripes[i] = new Stripe(perStripe);
+        this.capacityLimit = capacityLimit;
+    }
+
+    private static int tableSizeFor(int entries) {
+        int size = MIN_TABLE_SIZE;
+        while (size < entries * 2) size <<= 1;
+        return size;
+    }
+
+    //High hash bits pick the stripe, low bits pick the table slot
+    private Stripe stripeFor(int h) {
+        return stripes.length == 1 ? stripes[0] : stripes[h >>> stripeShift];
+    }
+
+    public int getCount() {
+        return count.get();
+    }
+
+    public int getCapacityLimit() {
+        return capacityLimit;
+    }
+
+    public Product findProductNull(int id) {
+        int h = ProductIdIndex.hash(id);
+        java.util.concurrent.atomic.AtomicReferenceArray<Product> t = stripeFor(h).table;
+        int mask = t.length() - 1;
+        for (int i = h & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            Product p = t.get(i);
+            if (p == null) return null;
+            if (p != DELETED && p.getProductId() == id) return p;
+        }
+        return null;
+    }
+
+    public Product searchProductById(int id) throws ProductNotFoundException {
+        Product p = findProductNull(id);
+        if (p == null)
+            throw new ProductNotFoundException("Product with ID " + id + " not found.");
+        return p;
+    }
+
+    public void addProduct(Product product) throws DuplicateProductException, InventoryFullException {
+        int id = product.getProductId();
+        int h = ProductIdIndex.hash(id);
+        Stripe s = stripeFor(h);
+        s.lock.lock();
+        try {
+            java.util.concurrent.atomic.AtomicReferenceArray<Product> t = s.table;
+            int mask = t.length() - 1;
+            int free = -1;
+            int i = h & mask;
+            for (Product p; (p = t.get(i)) != null; i = (i + 1) & mask) {
+                if (p == DELETED) {
+                    if (free < 0) free = i;
+                } else if (p.getProductId() == id) {
+                    throw new DuplicateProductException("Product with ID " + id + " already exists.");
+                }
+            }
+            if (count.incrementAndGet() > capacityLimit) {
+                count.decrementAndGet();
+                throw new InventoryFullException("Inventory is full. Cannot add more products.");
+            }
+            if (free < 0) {
+                free = i;
+                s.used++;
+            }
+            t.set(free, product);
+            s.live++;
+            if (s.used * 2 > t.length()) resize(s);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    public void updateProductById(int id, Double newPrice, Integer newQty) throws ProductNotFoundException, InvalidInputException {
+
+        if (newPrice != null && newPrice < 0)
+            throw new InvalidInputException("Price cannot be negative.");
+
+        if (newQty != null && newQty < 0)
+            throw new InvalidInputException("Quantity cannot be negative.");
+
+        Stripe s = stripeFor(ProductIdIndex.hash(id));
+        s.lock.lock();
+        try {
+            Product p = searchProductById(id);
+            if (newPrice != null) p.setPrice(newPrice);
+            if (newQty != null) p.setQuantity(newQty);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    //Stock moves are lock-free and never take the stripe lock
+    public int adjustQuantity(int id, int delta) throws ProductNotFoundException, InvalidInputException {
+        return searchProductById(id).adjustStock(delta);
+    }
+
+    public boolean reserve(int id, int n) throws ProductNotFoundException, InvalidInputException {
+        return searchProductById(id).reserveStock(n) >= 0;
+    }
+
+    public boolean compareAndSetQuantity(int id, int expected, int newQty) throws ProductNotFoundException, InvalidInputException {
+        return searchProductById(id).compareAndSetStock(expected, newQty);
+    }
+
+    public void deleteProductById(int id) throws ProductNotFoundException {
+        int h = ProductIdIndex.hash(id);
+        Stripe s = stripeFor(h);
+        s.lock.lock();
+        try {
+            java.util.concurrent.atomic.AtomicReferenceArray<Product> t = s.table;
+            int mask = t.length() - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                Product p = t.get(i);
+                if (p == null)
+                    throw new ProductNotFoundException("Product with ID " + id + " not found.");
+                if (p != DELETED && p.getProductId() == id) {
+                    t.set(i, DELETED);
+                    s.live--;
+                    count.decrementAndGet();
+                    return;
+                }
+            }
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    //Rebuilds one stripe into a fresh table and publishes it; readers keep using the old one until then
+    private void resize(Stripe s) {
+        java.util.concurrent.atomic.AtomicReferenceArray<Product> old = s.table;
+        java.util.concurrent.atomic.AtomicReferenceArray<Product> t = new java.util.concurrent.atomic.AtomicReferenceArray<>(tableSizeFor(s.live));
+        int mask = t.length() - 1;
+        for (int i = 0; i < old.length(); i++) {
+            Product p = old.get(i);
+            if (p == null || p == DELETED) continue;
+            int j = ProductIdIndex.hash(p.getProductId()) & mask;
+            while (t.get(j) != null) j = (j + 1) & mask;
+            t.set(j, p);
+        }
+        s.used = s.live;
+        s.table = t;
+    }
+
+    //Weakly consistent: sees every product present for the whole walk, may or may not see concurrent changes
+    public void forEach(java.util.function.Consumer<Product> action) {
+        for (Stripe s : stripes) {
+            java.util.concurrent.atomic.AtomicReferenceArray<Product> t = s.table;
+            for (int i = 0; i < t.length(); i++) {
+                Product p = t.get(i);
+                if (p != null && p != DELETED) action.accept(p);
+            }
+        }
+    }
+}
+
+//Name Dictionary (each distinct string is stored once and referenced by an int code)
+class StringDictionary {
+
+    private final java.util.HashMap<String, Integer> codes = new java.util.HashMap<>();
+    private final java.util.ArrayList<String> values = new java.util.ArrayList<>();
+    //Users per code; a code nobody uses any more goes on the free list and is handed to the next new value
+    private int[] refs = new int[16];
+    private int[] freeCodes = new int[16];
+    private int freeCount;
+
+    //Returns the value's code, counting one more user of it
+    public int encode(String value) {
+        Integer code = codes.get(value);
+        if (code == null) {
+            if (freeCount > 0) {
+                code = freeCodes[--freeCount];
+                values.set(code, value);
+            } else {
+                code = values.size();
+                values.add(value);
+                if (code == refs.length) refs = java.util.Arrays.copyOf(refs, code << 1);
+            }
+            codes.put(value, code);
+        }
+        refs[code]++;
+        return code;
+    }
+
+    //Drops one user of the code
+    public void release(int code) {
+        if (--refs[code] > 0) return;
+        codes.remove(values.get(code));
+        values.set(code, null);
+        if (freeCount == freeCodes.length) freeCodes = java.util.Arrays.copyOf(freeCodes, freeCount << 1);
+        freeCodes[freeCount++] = code;
+    }
+
+    public String decode(int code) {
+        return values.get(code);
+    }
+
+    //Values currently in use
+    public int size() {
+        return codes.size();
+    }
+
+    //Rough heap estimate: map entry, boxed code, list slot, String header and UTF-16/Latin-1 payload, plus the counters
+    public long estimatedBytes() {
+        long bytes = (long) (refs.length + freeCodes.length) * 4 + (long) values.size() * 8;
+        for (String v : values) if (v != null) bytes += 32 + 16 + 24 + 16 + v.length();
+        return bytes;
+    }
+}
+
+//Record Inventory Manager (base for layouts that keep each product as flat fields instead of a Product object)
+//Lookups and events hand out detached copies. Changes are synchronized on the manager, so stock moves are
+//atomic and listeners see changes one at a time in commit order. Deletes swap the last row into the gap.
+abstract class RecordInventoryManager implements Inventory {
+
+    private final ProductIdIndex index;
+    private final int capacityLimit;
+    private int count;
+    private InventoryListener[] listeners = new InventoryListener[0];
+
+    RecordInventoryManager(int initialCapacity, int capacityLimit) {
+        if (initialCapacity < 0 || capacityLimit <= 0)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        this.capacityLimit = capacityLimit;
+        index = new ProductIdIndex(Math.min(initialCapacity, capacityLimit));
+    }
+
+    //Stores the product in the row, which is the row count for a new product; must change nothing if it throws
+    abstract void writeRow(int row, Product p) throws InvalidInputException;
+
+    abstract Product readRow(int row);
+
+    abstract int idAt(int row);
+
+    abstract int quantityAt(int row);
+
+    abstract void setQuantityAt(int row, int quantity);
+
+    abstract double priceAt(int row);
+
+    abstract void setPriceAt(int row, double price);
+
+    //Lets go of whatever the row refers to outside itself, such as dictionary codes or name bytes
+    abstract void releaseRow(int row);
+
+    abstract void copyRow(int from, int to);
+
+    //Rows in use; callers must hold the manager's lock
+    int rows() {
+        return count;
+    }
+
+    @Override
+    public synchronized int getCount() {
+        return count;
+    }
+
+    @Override
+    public int getCapacityLimit() {
+        return capacityLimit;
+    }
+
+    @Override
+    public synchronized void addInventoryListener(InventoryListener listener) {
+        listeners = java.util.Arrays.copyOf(listeners, listeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+    }
+
+    @Override
+    public synchronized void removeInventoryListener(InventoryListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                InventoryListener[] next = new InventoryListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, next, 0, i);
+                System.arraycopy(listeners, i + 1, next, i, next.length - i);
+                listeners = next;
+                return;
+            }
+        }
+    }
+
+    //Runs outside the lock, once the change has reached every listener
+    private void delivered() {
+        InventoryListener[] ls;
+        synchronized (this) {
+            ls = listeners;
+        }
+        for (InventoryListener l : ls) l.changeDelivered();
+    }
+
+    private int rowOf(int id) throws ProductNotFoundException {
+        int row = index.get(id);
+        if (row < 0)
+            throw new ProductNotFoundException("Product with ID " + id + " not found.");
+        return row;
+    }
+
+    @Override
+    public void addProduct(Product product) throws DuplicateProductException, InventoryFullException, InvalidInputException {
+        try {
+            synchronized (this) {
+                if (index.contains(product.getProductId())) {
+                    throw new DuplicateProductException("Product with ID " + product.getProductId() + " already exists.");
+                }
+
+                if (count >= capacityLimit) {
+                    throw new InventoryFullException("Inventory is full. Cannot add more products.");
+                }
+
+                for (InventoryListener l : listeners) l.checkProduct(product);
+                for (InventoryListener l : listeners) l.checkRoom(1);
+
+                writeRow(count, product);
+                index.put(product.getProductId(), count++);
+                if (listeners.length > 0) {
+                    Product added = readRow(count - 1);
+                    for (InventoryListener l : listeners) l.productAdded(added);
+                }
+            }
+        } finally {
+            delivered();
+        }
+    }
+
+    @Override
+    public synchronized Product findProductNull(int id) {
+        int row = index.get(id);
+        return row < 0 ? null : readRow(row);
+    }
+
+    @Override
+    public Product searchProductById(int id) throws ProductNotFoundException {
+        Product p = findProductNull(id);
+        if (p == null)
+            throw new ProductNotFoundException("Product with ID " + id + " not found.");
+        return p;
+    }
+
+    @Override
+    public void updateProductById(int id, Double newPrice, Integer newQty) throws ProductNotFoundException, InvalidInputException {
+        try {
+            synchronized (this) {
+                int row = rowOf(id);
+
+                if (newPrice != null && newPrice < 0)
+                    throw new InvalidInputException("Price cannot be negative.");
+
+                if (newQty != null && newQty < 0)
+                    throw new InvalidInputException("Quantity cannot be negative.");
+
+                double oldPrice = priceAt(row);
+                int oldQty = quantityAt(row);
+                if (newPrice != null) setPriceAt(row, newPrice);
+                if (newQty != null) setQuantityAt(row, newQty);
+                fireUpdated(row, oldPrice, oldQty);
+            }
+        } finally {
+            delivered();
+        }
+    }
+
+    //Same checks and messages as Product.adjustStock
+    @Override
+    public int adjustQuantity(int id, int delta) throws ProductNotFoundException, InvalidInputException {
+        try {
+            synchronized (this) {
+                int row = rowOf(id);
+                int old = quantityAt(row);
+                int next;
+                try {
+                    next = Math.addExact(old, delta);
+                } catch (ArithmeticException e) {
+                    throw new InvalidInputException("Quantity is out of range.");
+                }
+                if (next < 0)
+                    throw new InvalidInputException("Quantity cannot be negative.");
+                setQuantityAt(row, next);
+                fireUpdated(row, priceAt(row), old);
+                return next;
+            }
+        } finally {
+            delivered();
+        }
+    }
+
+    @Override
+    public boolean reserve(int id, int n) throws ProductNotFoundException, InvalidInputException {
+        try {
+            synchronized (this) {
+                int row = rowOf(id);
+                if (n < 0)
+                    throw new InvalidInputException("Reserved quantity cannot be negative.");
+                int old = quantityAt(row);
+                if (old < n) return false;
+                setQuantityAt(row, old - n);
+                fireUpdated(row, priceAt(row), old);
+                return true;
+            }
+        } finally {
+            delivered();
+        }
+    }
+
+    @Override
+    public boolean compareAndSetQuantity(int id, int expected, int newQty) throws ProductNotFoundException, InvalidInputException {
+        try {
+            synchronized (this) {
+                int row = rowOf(id);
+                if (newQty < 0)
+                    throw new InvalidInputException("Quantity cannot be negative.");
+                if (quantityAt(row) != expected) return false;
+                setQuantityAt(row, newQty);
+                fireUpdated(row, priceAt(row), expected);
+                return true;
+            }
+        } finally {
+            delivered();
+        }
+    }
+
+    private void fireUpdated(int row, double oldPrice, int oldQuantity) {
+        if (listeners.length == 0) return;
+        Product updated = readRow(row);
+        for (InventoryListener l : listeners) l.productUpdated(updated, oldPrice, oldQuantity);
+    }
+
+    @Override
+    public void deleteProductById(int id) throws ProductNotFoundException {
+        try {
+            synchronized (this) {
+                int row = index.remove(id);
+                if (row < 0)
+                    throw new ProductNotFoundException("Product with ID " + id + " not found.");
+
+                Product removed = listeners.length > 0 ? readRow(row) : null;
+                releaseRow(row);
+                int last = --count;
+                if (row != last) {
+                    copyRow(last, row);
+                    index.put(idAt(row), row);
+                }
+                if (removed != null) for (InventoryListener l : listeners) l.productRemoved(removed);
+            }
+        } finally {
+            delivered();
+        }
+    }
+
+    @Override
+    public synchronized void forEach(java.util.function.Consumer<Product> action) {
+        for (int row = 0; row < count; row++) action.accept(readRow(row));
+    }
+
+    //Rough heap cost of the ID index, for the layouts' byte counts
+    long indexBytes() {
+        return (long) index.capacity() * 8;
+    }
+}
+
+//Columnar Inventory Manager Class (struct-of-arrays storage)
+class ColumnarInventoryManager extends RecordInventoryManager {
+
+    private static final int NOT_PERISHABLE = -1;
+
+    private int[] ids;
+    private double[] prices;
+    private int[] quantities;
+    private int[] nameCodes;
+    private int[] expiryCodes;
+
+    private final StringDictionary names = new StringDictionary();
+    private final StringDictionary expiryDates = new StringDictionary();
+
+    public ColumnarInventoryManager() {
+        this(50);
+    }
+
+    public ColumnarInventoryManager(int initialCapacity) {
+        this(initialCapacity, InventoryManager.UNLIMITED);
+    }
+
+    public ColumnarInventoryManager(int initialCapacity, int capacityLimit) {
+        super(initialCapacity, capacityLimit);
+        int cap = Math.max(Math.min(initialCapacity, capacityLimit), 16);
+        ids = new int[cap];
+        prices = new double[cap];
+        quantities = new int[cap];
+        nameCodes = new int[cap];
+        expiryCodes = new int[cap];
+    }
+
+    //Distinct names and expiry dates still referenced by some row
+    public synchronized int getDictionarySize() {
+        return names.size() + expiryDates.size();
+    }
+
+    @Override
+    void writeRow(int row, Product product) {
+        if (row == ids.length) grow();
+        ids[row] = product.getProductId();
+        prices[row] = product.getPrice();
+        quantities[row] = product.getQuantity();
+        nameCodes[row] = names.encode(product.getProductName());
+        expiryCodes[row] = product instanceof PerishableProduct
+                ? expiryDates.encode(((PerishableProduct) product).getExpiryDate())
+                : NOT_PERISHABLE;
+    }
+
+    //Columns hold primitives only, so growing copies flat arrays the GC never has to trace
+    private void grow() {
+        int cap = ids.length << 1;
+        ids = java.util.Arrays.copyOf(ids, cap);
+        prices = java.util.Arrays.copyOf(prices, cap);
+        quantities = java.util.Arrays.copyOf(quantities, cap);
+        nameCodes = java.util.Arrays.copyOf(nameCodes, cap);
+        expiryCodes = java.util.Arrays.copyOf(expiryCodes, cap);
+    }
+
+    @Override
+    Product readRow(int row) {
+        String name = names.decode(nameCodes[row]);
+        if (expiryCodes[row] == NOT_PERISHABLE) return new Product(ids[row], name, prices[row], quantities[row]);
+        return new PerishableProduct(ids[row], name, prices[row], quantities[row], expiryDates.decode(expiryCodes[row]));
+    }
+
+    @Override
+    int idAt(int row) {
+        return ids[row];
+    }
+
+    @Override
+    int quantityAt(int row) {
+        return quantities[row];
+    }
+
+    @Override
+    void setQuantityAt(int row, int quantity) {
+        quantities[row] = quantity;
+    }
+
+    @Override
+    double priceAt(int row) {
+        return prices[row];
+    }
+
+    @Override
+    void setPriceAt(int row, double price) {
+        prices[row] = price;
+    }
+
+    @Override
+    void releaseRow(int row) {
+        names.release(nameCodes[row]);
+        if (expiryCodes[row] != NOT_PERISHABLE) expiryDates.release(expiryCodes[row]);
+    }
+
+    @Override
+    void copyRow(int from, int to) {
+        ids[to] = ids[from];
+        prices[to] = prices[from];
+        quantities[to] = quantities[from];
+        nameCodes[to] = nameCodes[from];
+        expiryCodes[to] = expiryCodes[from];
+    }
+
+    public synchronized double totalStockValue() {
+        double total = 0;
+        int rows = rows();
+        for (int row = 0; row < rows; row++) total += prices[row] * quantities[row];
+        return total;
+    }
+
+    //Allocated column, index and dictionary bytes divided by live products
+    public synchronized double bytesPerProduct() {
+        if (rows() == 0) return 0;
+        long columns = (long) ids.length * (4 + 8 + 4 + 4 + 4);
+        return (double) (columns + indexBytes() + names.estimatedBytes() + expiryDates.estimatedBytes()) / rows();
+    }
+}
+
+//Off-Heap Inventory Manager Class (fixed-width records in direct buffers)
+class OffHeapInventoryManager extends RecordInventoryManager {
+
+    //Record layout: id, quantity, price, expiry length, name length, name offset.
+    //The expiry text is stored as written, right after the name in the arena, so any date PerishableProduct
+    //accepts round-trips unchanged; NOT_PERISHABLE in the expiry length marks a plain product
+    static final int RECORD_BYTES = 32;
+    private static final int ID = 0, QUANTITY = 4, PRICE = 8, EXPIRY_LENGTH = 16, NAME_LENGTH = 20, NAME_OFFSET = 24;
+    static final int NOT_PERISHABLE = -1;
+
+    private static final int RECORDS_SHIFT = 15;
+    private static final int RECORDS_PER_CHUNK = 1 << RECORDS_SHIFT;
+    private static final int ARENA_SHIFT = 20;
+    private static final int ARENA_CHUNK_BYTES = 1 << ARENA_SHIFT;
+
+    private final java.util.ArrayList<java.nio.ByteBuffer> recordChunks = new java.util.ArrayList<>();
+    private final java.util.ArrayList<java.nio.ByteBuffer> arenaChunks = new java.util.ArrayList<>();
+    private long arenaWasted;
+
+    public OffHeapInventoryManager() {
+        this(50);
+    }
+
+    public OffHeapInventoryManager(int initialCapacity) {
+        this(initialCapacity, InventoryManager.UNLIMITED);
+    }
+
+    public OffHeapInventoryManager(int initialCapacity, int capacityLimit) {
+        super(initialCapacity, capacityLimit);
+        while ((long) recordChunks.size() * RECORDS_PER_CHUNK < Math.max(Math.min(initialCapacity, capacityLimit), 1)) addRecordChunk();
+        arenaChunks.add(java.nio.ByteBuffer.allocateDirect(ARENA_CHUNK_BYTES));
+    }
+
+    private void addRecordChunk() {
+        recordChunks.add(java.nio.ByteBuffer.allocateDirect(RECORDS_PER_CHUNK * RECORD_BYTES).order(java.nio.ByteOrder.nativeOrder()));
+    }
+
+    private java.nio.ByteBuffer chunkOf(int row) {
+        return recordChunks.get(row >>> RECORDS_SHIFT);
+    }
+
+    private static int base(int row) {
+        return (row & (RECORDS_PER_CHUNK - 1)) * RECORD_BYTES;
+    }
+
+    @Override
+    void writeRow(int row, Product product) throws InvalidInputException {
+        byte[] name = product.getProductName().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        byte[] expiry = product instanceof PerishableProduct
+                ? java.util.Objects.toString(((PerishableProduct) product).getExpiryDate(), "").getBytes(java.nio.charset.StandardCharsets.UTF_8)
+                : null;
+        if (name.length + (expiry == null ? 0 : expiry.length) > ARENA_CHUNK_BYTES)
+            throw new InvalidInputException("Product name is too long.");
+
+        if (row == recordChunks.size() * RECORDS_PER_CHUNK) addRecordChunk();
+        java.nio.ByteBuffer chunk = chunkOf(row);
+        int b = base(row);
+        chunk.putInt(b + ID, product.getProductId());
+        chunk.putInt(b + QUANTITY, product.getQuantity());
+        chunk.putDouble(b + PRICE, product.getPrice());
+        chunk.putInt(b + EXPIRY_LENGTH, expiry == null ? NOT_PERISHABLE : expiry.length);
+        chunk.putInt(b + NAME_LENGTH, name.length);
+        chunk.putLong(b + NAME_OFFSET, appendText(name, expiry));
+    }
+
+    //The name and expiry are appended to the arena together; they never straddle two arena chunks
+    private long appendText(byte[] name, byte[] expiry) {
+        int length = name.length + (expiry == null ? 0 : expiry.length);
+        java.nio.ByteBuffer arena = arenaChunks.get(arenaChunks.size() - 1);
+        if (arena.remaining() < length) {
+            arenaWasted += arena.remaining();
+            arena = java.nio.ByteBuffer.allocateDirect(ARENA_CHUNK_BYTES);
+            arenaChunks.add(arena);
+        }
+        long offset = ((long) (arenaChunks.size() - 1) << ARENA_SHIFT) | arena.position();
+        arena.put(name);
+        if (expiry != null) arena.put(expiry);
+        return offset;
+    }
+
+    private String readText(long offset, int length) {
+        byte[] text = new byte[length];
+        arenaChunks.get((int) (offset >>> ARENA_SHIFT)).get((int) (offset & (ARENA_CHUNK_BYTES - 1)), text);
+        return new String(text, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    @Override
+    Product readRow(int row) {
+        java.nio.ByteBuffer chunk = chunkOf(row);
+        int b = base(row);
+        int id = chunk.getInt(b + ID);
+        long offset = chunk.getLong(b + NAME_OFFSET);
+        int nameLength = chunk.getInt(b + NAME_LENGTH);
+        String name = readText(offset, nameLength);
+        int expiryLength = chunk.getInt(b + EXPIRY_LENGTH);
+        if (expiryLength == NOT_PERISHABLE)
+            return new Product(id, name, chunk.getDouble(b + PRICE), chunk.getInt(b + QUANTITY));
+        return new PerishableProduct(id, name, chunk.getDouble(b + PRICE), chunk.getInt(b + QUANTITY),
+                readText(offset + nameLength, expiryLength));
+    }
+
+    @Override
+    int idAt(int row) {
+        return chunkOf(row).getInt(base(row) + ID);
+    }
+
+    @Override
+    int quantityAt(int row) {
+        return chunkOf(row).getInt(base(row) + QUANTITY);
+    }
+
+    @Override
+    void setQuantityAt(int row, int quantity) {
+        chunkOf(row).putInt(base(row) + QUANTITY, quantity);
+    }
+
+    @Override
+    double priceAt(int row) {
+        return chunkOf(row).getDouble(base(row) + PRICE);
+    }
+
+    @Override
+    void setPriceAt(int row, double price) {
+        chunkOf(row).putDouble(base(row) + PRICE, price);
+    }
+
+    //The row's text bytes stay in the arena
+    @Override
+    void releaseRow(int row) {
+        java.nio.ByteBuffer chunk = chunkOf(row);
+        int b = base(row);
+        arenaWasted += chunk.getInt(b + NAME_LENGTH) + Math.max(chunk.getInt(b + EXPIRY_LENGTH), 0);
+    }
+
+    @Override
+    void copyRow(int from, int to) {
+        java.nio.ByteBuffer src = chunkOf(from);
+        java.nio.ByteBuffer dst = chunkOf(to);
+        int s = base(from);
+        int d = base(to);
+        for (int i = 0; i < RECORD_BYTES; i += 8) dst.putLong(d + i, src.getLong(s + i));
+    }
+
+    public synchronized double totalStockValue() {
+        double total = 0;
+        int rows = rows();
+        for (int row = 0; row < rows; row++) {
+            java.nio.ByteBuffer chunk = chunkOf(row);
+            int b = base(row);
+            total += chunk.getDouble(b + PRICE) * chunk.getInt(b + QUANTITY);
+        }
+        return total;
+    }
+
+    public synchronized long offHeapBytes() {
+        return (long) recordChunks.size() * RECORDS_PER_CHUNK * RECORD_BYTES + (long) arenaChunks.size() * ARENA_CHUNK_BYTES;
+    }
+
+    public synchronized long getArenaWastedBytes() {
+        return arenaWasted;
+    }
+}
+
+//Memory-Mapped Inventory File (persistent, updated in place)
+class MappedInventoryFile implements InventoryListener, InventoryBackend {
+
+    private static final int MAGIC = 0x494E5646;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4096;
+    private static final int H_MAGIC = 0, H_VERSION = 4, H_SLOT_COUNT = 8, H_CLEAN = 12;
+
+    //Every slot holds two copies of its record; a write always goes to the copy that is not current
+    static final int RECORD_BYTES = 128;
+    static final int SLOT_BYTES = RECORD_BYTES * 2;
+    private static final int SEQ = 0, CRC = 8, FLAGS = 12, ID = 16, QUANTITY = 20, PRICE = 24,
+            NAME_LENGTH = 32, EXPIRY_LENGTH = 34, NAME = 36, EXPIRY = 108;
+    static final int MAX_NAME_BYTES = EXPIRY - NAME;
+    static final int MAX_EXPIRY_BYTES = RECORD_BYTES - EXPIRY;
+    private static final int LIVE = 1, FREE = 0;
+    private static final int SEGMENT_SLOTS = 1 << 14;
+
+    private final FileChannel channel;
+    private final java.nio.MappedByteBuffer header;
+    private final java.util.ArrayList<java.nio.MappedByteBuffer> segments = new java.util.ArrayList<>();
+    private final ProductIdIndex index;
+    private final java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private int slotCount;
+    private int discardedCopies;
+
+    public MappedInventoryFile(java.nio.file.Path path) throws java.io.IOException {
+        channel = FileChannel.open(path, java.nio.file.StandardOpenOption.READ,
+                java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.CREATE);
+        boolean fresh = channel.size() == 0;
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        if (fresh) {
+            header.putInt(H_MAGIC, MAGIC);
+            header.putInt(H_VERSION, VERSION);
+            header.putInt(H_SLOT_COUNT, 0);
+            header.putInt(H_CLEAN, 1);
+        } else if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION) {
+            channel.close();
+            throw new java.io.IOException(path + " is not an inventory file.");
+        }
+
+        //Checksums are only checked after a run that did not close the file cleanly
+        boolean verify = header.getInt(H_CLEAN) != 1;
+        header.putInt(H_CLEAN, 0);
+        header.force();
+
+        slotCount = header.getInt(H_SLOT_COUNT);
+        index = new ProductIdIndex(slotCount);
+        while ((long) segments.size() * SEGMENT_SLOTS < slotCount) mapSegment();
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (verify) discardTornCopies(slot);
+            int copy = currentCopy(slot);
+            java.nio.MappedByteBuffer seg = segmentOf(slot);
+            if (copy < 0 || seg.getInt(copy + FLAGS) != LIVE) {
+                pushFree(slot);
+            } else {
+                index.put(seg.getInt(copy + ID), slot);
+            }
+        }
+
+        //Slots appended since the last flush lie past the header count; keep them up to the first one never written intact
+        while (true) {
+            if (slotCount == segments.size() * SEGMENT_SLOTS) {
+                if (channel.size() < HEADER_BYTES + (segments.size() + 1L) * SEGMENT_SLOTS * SLOT_BYTES) break;
+                mapSegment();
+            }
+            discardTornCopies(slotCount);
+            int copy = currentCopy(slotCount);
+            if (copy < 0) break;
+            if (segmentOf(slotCount).getInt(copy + FLAGS) == LIVE) index.put(segmentOf(slotCount).getInt(copy + ID), slotCount);
+            else pushFree(slotCount);
+            slotCount++;
+        }
+    }
+
+    //Attached as a listener or used as a backend, this makes the manager refuse such a product before adding it
+    @Override
+    public void checkProduct(Product product) throws InvalidInputException {
+        checkFits(product);
+    }
+
+    //Maps the segments new records will need now, so writing them from the listener cannot fail after the manager has committed
+    @Override
+    public synchronized void checkRoom(int products) throws InvalidInputException {
+        try {
+            reserve(products);
+        } catch (java.io.IOException e) {
+            throw new InvalidInputException("Inventory file has no room to save " + products + " more product(s): " + e.getMessage());
+        }
+    }
+
+    public static void checkFits(Product p) throws InvalidInputException {
+        if (p.getProductName().getBytes(java.nio.charset.StandardCharsets.UTF_8).length > MAX_NAME_BYTES)
+            throw new InvalidInputException("Product name is too long to save (max " + MAX_NAME_BYTES + " bytes).");
+        if (p instanceof PerishableProduct
+                && ((PerishableProduct) p).getExpiryDate().getBytes(java.nio.charset.StandardCharsets.UTF_8).length > MAX_EXPIRY_BYTES)
+            throw new InvalidInputException("Expiry date is too long to save (max " + MAX_EXPIRY_BYTES + " bytes).");
+    }
+
+    public int getCount() {
+        return index.size();
+    }
+
+    public boolean contains(int id) {
+        return index.contains(id);
+    }
+
+    //Half-written record copies thrown away when the file was opened after a crash
+    public int getDiscardedCopies() {
+        return discardedCopies;
+    }
+
+    private void mapSegment() throws java.io.IOException {
+        long pos = HEADER_BYTES + (long) segments.size() * SEGMENT_SLOTS * SLOT_BYTES;
+        segments.add(channel.map(FileChannel.MapMode.READ_WRITE, pos, (long) SEGMENT_SLOTS * SLOT_BYTES));
+    }
+
+    private java.nio.MappedByteBuffer segmentOf(int slot) {
+        return segments.get(slot / SEGMENT_SLOTS);
+    }
+
+    private static int copyBase(int slot, int copy) {
+        return (slot % SEGMENT_SLOTS) * SLOT_BYTES + copy * RECORD_BYTES;
+    }
+
+    //A copy whose checksum does not match was interrupted mid-write; forget it so the other copy wins
+    private void discardTornCopies(int slot) {
+        java.nio.MappedByteBuffer seg = segmentOf(slot);
+        for (int copy = 0; copy < 2; copy++) {
+            int base = copyBase(slot, copy);
+            if (seg.getLong(base + SEQ) > 0 && checksum(seg, base) != seg.getInt(base + CRC)) {
+                seg.putLong(base + SEQ, 0);
+                discardedCopies++;
+            }
+        }
+    }
+
+    //Base offset of the newest copy of a slot, or -1 if neither copy was ever written
+    private int currentCopy(int slot) {
+        java.nio.MappedByteBuffer seg = segmentOf(slot);
+        int a = copyBase(slot, 0);
+        int b = copyBase(slot, 1);
+        long seqA = seg.getLong(a + SEQ);
+        long seqB = seg.getLong(b + SEQ);
+        if (seqA == 0 && seqB == 0) return -1;
+        return seqA > seqB ? a : b;
+    }
+
+    private int checksum(java.nio.MappedByteBuffer seg, int base) {
+        crc.reset();
+        java.nio.ByteBuffer view = seg.duplicate();
+        view.limit(base + CRC).position(base + SEQ);
+        crc.update(view);
+        view.limit(base + RECORD_BYTES).position(base + FLAGS);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    private void writeRecord(int slot, Product p) {
+        java.nio.MappedByteBuffer seg = segmentOf(slot);
+        int current = currentCopy(slot);
+        int target = current == copyBase(slot, 0) ? copyBase(slot, 1) : copyBase(slot, 0);
+        long seq = current < 0 ? 1 : seg.getLong(current + SEQ) + 1;
+
+        seg.putLong(target + SEQ, seq);
+        if (p == null) {
+            seg.putInt(target + FLAGS, FREE);
+        } else {
+            byte[] name = p.getProductName().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            byte[] expiry = p instanceof PerishableProduct
+                    ? ((PerishableProduct) p).getExpiryDate().getBytes(java.nio.charset.StandardCharsets.UTF_8)
+                    : null;
+            if (name.length > MAX_NAME_BYTES || (expiry != null && expiry.length > MAX_EXPIRY_BYTES))
+                throw new IllegalArgumentException("Product " + p.getProductId() + " does not fit in a record.");
+            seg.putInt(target + FLAGS, LIVE);
+            seg.putInt(target + ID, p.getProductId());
+            seg.putInt(target + QUANTITY, p.getQuantity());
+            seg.putDouble(target + PRICE, p.getPrice());
+            seg.putShort(target + NAME_LENGTH, (short) name.length);
+            seg.put(target + NAME, name);
+            seg.putShort(target + EXPIRY_LENGTH, (short) (expiry == null ? -1 : expiry.length));
+            if (expiry != null) seg.put(target + EXPIRY, expiry);
+        }
+        seg.putInt(target + CRC, checksum(seg, target));
+    }
+
+    private Product readRecord(int slot) {
+        java.nio.MappedByteBuffer seg = segmentOf(slot);
+        int base = currentCopy(slot);
+        byte[] name = new byte[seg.getShort(base + NAME_LENGTH)];
+        seg.get(base + NAME, name);
+        int id = seg.getInt(base + ID);
+        String productName = new String(name, java.nio.charset.StandardCharsets.UTF_8);
+        double price = seg.getDouble(base + PRICE);
+        int quantity = seg.getInt(base + QUANTITY);
+        int expiryLength = seg.getShort(base + EXPIRY_LENGTH);
+        if (expiryLength < 0) return new Product(id, productName, price, quantity);
+        byte[] expiry = new byte[expiryLength];
+        seg.get(base + EXPIRY, expiry);
+        return new PerishableProduct(id, productName, price, quantity, new String(expiry, java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    private void pushFree(int slot) {
+        if (freeCount == freeSlots.length) freeSlots = java.util.Arrays.copyOf(freeSlots, freeCount << 1);
+        freeSlots[freeCount++] = slot;
+    }
+
+    //Maps segments until that many new records fit in free or mapped slots
+    private void reserve(int records) throws java.io.IOException {
+        while (freeCount + (long) segments.size() * SEGMENT_SLOTS - slotCount < records) mapSegment();
+    }
+
+    public void put(Product p) throws java.io.IOException {
+        if (index.contains(p.getProductId())) {
+            putReserved(p);
+            return;
+        }
+        reserve(1);
+        putReserved(p);
+    }
+
+    //Never touches the mapping, so it cannot fail; a new product needs room from checkRoom or reserve first.
+    //New slots are appended past the header count, which flush() only advances once their records are on disk.
+    void putReserved(Product p) {
+        int slot = index.get(p.getProductId());
+        if (slot >= 0) {
+            writeRecord(slot, p);
+            return;
+        }
+        slot = freeCount > 0 ? freeSlots[--freeCount] : slotCount;
+        writeRecord(slot, p);
+        if (slot == slotCount) slotCount++;
+        index.put(p.getProductId(), slot);
+    }
+
+    public boolean delete(int id) {
+        int slot = index.remove(id);
+        if (slot < 0) return false;
+        writeRecord(slot, null);
+        pushFree(slot);
+        return true;
+    }
+
+    public Product get(int id) {
+        int slot = index.get(id);
+        return slot < 0 ? null : readRecord(slot);
+    }
+
+    public void forEach(java.util.function.Consumer<Product> action) {
+        for (int slot = 0; slot < slotCount; slot++) {
+            int base = currentCopy(slot);
+            if (base >= 0 && segmentOf(slot).getInt(base + FLAGS) == LIVE) action.accept(readRecord(slot));
+        }
+    }
+
+    //Backend calls may come from cache threads, so they take turns on the file
+    @Override
+    public synchronized void forEachId(java.util.function.IntConsumer action) {
+        index.forEachKey(id -> {
+            action.accept(id);
+            return true;
+        });
+    }
+
+    @Override
+    public synchronized Product load(int id) {
+        return get(id);
+    }
+
+    @Override
+    public synchronized void store(Product p) throws java.io.IOException {
+        put(p);
+    }
+
+    @Override
+    public synchronized void remove(int id) {
+        delete(id);
+    }
+
+    //Loads every stored product into the manager in one batch; attach this file as a listener afterwards.
+    //For a manager that reads records on demand instead, open a CachedInventoryManager over the file.
+    public BatchResult loadInto(InventoryManager manager) {
+        java.util.ArrayList<Product> all = new java.util.ArrayList<>(getCount());
+        forEach(all::add);
+        return manager.addAll(all);
+    }
+
+    //The manager asked checkRoom before committing, so there is room for the record
+    @Override
+    public void productAdded(Product product) {
+        putReserved(product);
+    }
+
+    @Override
+    public void productUpdated(Product product, double oldPrice, int oldQuantity) {
+        productAdded(product);
+    }
+
+    @Override
+    public void productRemoved(Product product) {
+        delete(product.getProductId());
+    }
+
+    //Records first, then the slot count that makes them part of the file
+    public void flush() {
+        for (java.nio.MappedByteBuffer seg : segments) seg.force();
+        header.putInt(H_SLOT_COUNT, slotCount);
+        header.force();
+    }
+
+    @Override
+    public void close() throws java.io.IOException {
+        flush();
+        header.putInt(H_CLEAN, 1);
+        header.force();
+        channel.close();
+    }
+}
+
+//Inventory Backend (slower product store behind an InventoryCache; implementations must be safe to call from any thread)
+interface InventoryBackend extends AutoCloseable {
+
+    //Lets the backend refuse a product it could not store before anything changes
+    default void checkProduct(Product product) throws InvalidInputException {}
+
+    //Every stored ID, in no particular order
+    void forEachId(java.util.function.IntConsumer action) throws java.io.IOException;
+
+    //Null when no product with the ID is stored
+    Product load(int id) throws java.io.IOException;
+
+    void store(Product p) throws java.io.IOException;
+
+    void remove(int id) throws java.io.IOException;
+
+    @Override
+    void close() throws java.io.IOException;
+}
+
+//Inventory Cache (read-through, write-behind, bounded in bytes with segmented LRU eviction)
+//New entries start on probation and are promoted to the protected segment on their second hit,
+//so a one-off scan cannot push out the products that are read all the time
+class InventoryCache implements InventoryListener, AutoCloseable {
+
+    //Marks a queued delete in the write-behind map
+    private static final Product REMOVED = new Product(0, "", 0, 0);
+    //Rough heap cost of an entry besides its strings: the product, its boxed key and the map node
+    private static final int ENTRY_BYTES = 96;
+    private static final int STRING_BYTES = 40;
+    private static final int STRIPES = 16;
+    private static final int PROTECTED_PERCENT = 80;
+    //How soon a failed write-through is tried again when no write-behind flush would pick it up
+    private static final long RETRY_MILLIS = 200;
+
+    private static class Stripe {
+        final java.util.concurrent.locks.ReentrantLock lock = new java.util.concurrent.locks.ReentrantLock();
+        final java.util.LinkedHashMap<Integer, Product> probation = new java.util.LinkedHashMap<>(16, 0.75f, true);
+        final java.util.LinkedHashMap<Integer, Product> protectedSegment = new java.util.LinkedHashMap<>(16, 0.75f, true);
+        long probationBytes;
+        long protectedBytes;
+        //Bumped by every write so a load that raced one does not install what it read
+        long writes;
+    }
+
+    private final InventoryBackend backend;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long stripeBytes;
+    private final long protectedBytes;
+    private final java.util.concurrent.ConcurrentHashMap<Integer, java.util.concurrent.CompletableFuture<Product>> loading = new java.util.concurrent.ConcurrentHashMap<>();
+    private final java.util.concurrent.ConcurrentHashMap<Integer, Product> pendingWrites = new java.util.concurrent.ConcurrentHashMap<>();
+    private final java.util.concurrent.ScheduledExecutorService flusher;
+    private final boolean writeBehind;
+    private final java.util.concurrent.atomic.AtomicBoolean retryScheduled = new java.util.concurrent.atomic.AtomicBoolean();
+
+    private final java.util.concurrent.atomic.LongAdder hits = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder misses = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder loads = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder sharedLoads = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder evictions = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder flushedWrites = new java.util.concurrent.atomic.LongAdder();
+    private volatile java.io.IOException lastWriteFailure;
+
+    //A flush period of zero or less writes straight through to the backend instead of queueing;
+    //the flusher's thread then only starts if a write fails and has to be retried
+    public InventoryCache(InventoryBackend backend, long maxBytes, long flushMillis) {
+        this.backend = backend;
+        this.stripeBytes = Math.max(1, maxBytes / STRIPES);
+        this.protectedBytes = stripeBytes * PROTECTED_PERCENT / 100;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+        writeBehind = flushMillis > 0;
+        flusher = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, writeBehind ? "inventory-write-behind" : "inventory-write-retry");
+            t.setDaemon(true);
+            return t;
+        });
+        if (writeBehind)
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+
+    static long weigh(Product p) {
+        long bytes = ENTRY_BYTES + STRING_BYTES + p.getProductName().length();
+        if (p instanceof PerishableProduct) bytes += STRING_BYTES + ((PerishableProduct) p).getExpiryDate().length();
+        return bytes;
+    }
+
+    private Stripe stripeFor(int id) {
+        return stripes[(id * 0x9E3779B9) >>> 28];
+    }
+
+    //Null when the product does not exist; concurrent misses on one ID share a single backend load.
+    //Returns a copy, like put stores one, so callers can never change what the cache holds.
+    public Product get(int id) throws java.io.IOException {
+        Product p = find(id);
+        return p == null ? null : p.copy();
+    }
+
+    private Product find(int id) throws java.io.IOException {
+        Product queued = pendingWrites.get(id);
+        if (queued != null) {
+            hits.increment();
+            return queued == REMOVED ? null : queued;
+        }
+        Stripe s = stripeFor(id);
+        long seen;
+        s.lock.lock();
+        try {
+            Product p = lookup(s, id);
+            if (p != null) {
+                hits.increment();
+                return p;
+            }
+            seen = s.writes;
+        } finally {
+            s.lock.unlock();
+        }
+        //Writes queue before they bump the stripe, so one our count already includes is visible here
+        queued = pendingWrites.get(id);
+        if (queued != null) {
+            hits.increment();
+            return queued == REMOVED ? null : queued;
+        }
+        misses.increment();
+        return load(s, id, seen);
+    }
+
+    private Product load(Stripe s, int id, long seen) throws java.io.IOException {
+        java.util.concurrent.CompletableFuture<Product> mine = new java.util.concurrent.CompletableFuture<>();
+        java.util.concurrent.CompletableFuture<Product> inFlight = loading.putIfAbsent(id, mine);
+        if (inFlight != null) {
+            sharedLoads.increment();
+            try {
+                return inFlight.join();
+            } catch (java.util.concurrent.CompletionException e) {
+                if (e.getCause() instanceof java.io.IOException) throw (java.io.IOException) e.getCause();
+                throw e;
+            }
+        }
+        try {
+            //Another loader may have finished between our miss and claiming the key
+            s.lock.lock();
+            try {
+                Product p = lookup(s, id);
+                if (p != null) {
+                    mine.complete(p);
+                    return p;
+                }
+            } finally {
+                s.lock.unlock();
+            }
+            loads.increment();
+            Product p = backend.load(id);
+            if (p != null) {
+                s.lock.lock();
+                try {
+                    if (s.writes == seen && lookup(s, id) == null) admit(s, id, p, false);
+                } finally {
+                    s.lock.unlock();
+                }
+            }
+            mine.complete(p);
+            return p;
+        } catch (java.io.IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(id, mine);
+        }
+    }
+
+    //Caches its own copy; the backend sees it on the next flush, or now when writing through
+    public void put(Product p) throws java.io.IOException {
+        Product copy = p.copy();
+        write(copy.getProductId(), copy);
+    }
+
+    public void remove(int id) throws java.io.IOException {
+        write(id, REMOVED);
+    }
+
+    //The change reaches the backend or the queue before the cached entry goes, so a load that
+    //misses meanwhile either reads the new state or finds the queued one
+    private void write(int id, Product p) throws java.io.IOException {
+        if (writeBehind) {
+            pendingWrites.put(id, p);
+        } else {
+            //Shares flush()'s monitor, so a retry of an older failed write cannot land after this one
+            synchronized (this) {
+                if (p == REMOVED) backend.remove(id);
+                else backend.store(p);
+                //A failed listener write queued earlier is older than this one
+                pendingWrites.remove(id);
+            }
+        }
+        install(id, p);
+    }
+
+    private void install(int id, Product p) {
+        Stripe s = stripeFor(id);
+        s.lock.lock();
+        try {
+            s.writes++;
+            boolean hot = discard(s, id);
+            if (p != REMOVED) admit(s, id, p, hot);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    //The manager has already changed when a listener runs, so a failed write-through is queued, kept in
+    //lastWriteFailure rather than thrown back at the caller, and retried shortly until it goes through
+    private void writeFromListener(int id, Product p) {
+        try {
+            write(id, p);
+        } catch (java.io.IOException e) {
+            lastWriteFailure = e;
+            pendingWrites.put(id, p);
+            install(id, p);
+            scheduleRetry();
+        }
+    }
+
+    //Write-behind already flushes on a timer; write-through has nothing else that would pick the change up before close()
+    private void scheduleRetry() {
+        if (writeBehind || !retryScheduled.compareAndSet(false, true)) return;
+        try {
+            flusher.schedule(() -> {
+                retryScheduled.set(false);
+                flushQuietly();
+                if (!pendingWrites.isEmpty()) scheduleRetry();
+            }, RETRY_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS);
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            //Closing; close() flushes what is still queued
+            retryScheduled.set(false);
+        }
+    }
+
+    //Writes every queued change to the backend; a change that fails stays queued for the next flush
+    public synchronized void flush() throws java.io.IOException {
+        for (java.util.Map.Entry<Integer, Product> e : pendingWrites.entrySet()) {
+            int id = e.getKey();
+            Product p = e.getValue();
+            try {
+                if (p == REMOVED) backend.remove(id);
+                else backend.store(p);
+            } catch (java.io.IOException ex) {
+                lastWriteFailure = ex;
+                throw ex;
+            }
+            //Only dequeue if no newer write for the ID arrived meanwhile
+            pendingWrites.remove(id, p);
+            flushedWrites.increment();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (java.io.IOException e) {
+            //Kept in lastWriteFailure; the queued changes are retried on the next run
+        }
+    }
+
+    //Must hold the stripe lock; a probation hit earns promotion to the protected segment
+    private Product lookup(Stripe s, int id) {
+        Product p = s.protectedSegment.get(id);
+        if (p != null) return p;
+        p = s.probation.remove(id);
+        if (p == null) return null;
+        s.probationBytes -= weigh(p);
+        admit(s, id, p, true);
+        return p;
+    }
+
+    //Must hold the stripe lock; returns whether the entry was in the protected segment
+    private boolean discard(Stripe s, int id) {
+        Product p = s.protectedSegment.remove(id);
+        if (p != null) {
+            s.protectedBytes -= weigh(p);
+            return true;
+        }
+        p = s.probation.remove(id);
+        if (p != null) s.probationBytes -= weigh(p);
+        return false;
+    }
+
+    private void admit(Stripe s, int id, Product p, boolean hot) {
+        if (hot) {
+            s.protectedSegment.put(id, p);
+            s.protectedBytes += weigh(p);
+            //Protected overflow goes back to probation rather than straight out
+            while (s.protectedBytes > protectedBytes) {
+                java.util.Map.Entry<Integer, Product> lru = s.protectedSegment.entrySet().iterator().next();
+                s.protectedSegment.remove(lru.getKey());
+                long w = weigh(lru.getValue());
+                s.protectedBytes -= w;
+                s.probation.put(lru.getKey(), lru.getValue());
+                s.probationBytes += w;
+            }
+        } else {
+            s.probation.put(id, p);
+            s.probationBytes += weigh(p);
+        }
+        while (s.probationBytes + s.protectedBytes > stripeBytes) {
+            java.util.LinkedHashMap<Integer, Product> victims = s.probation.isEmpty() ? s.protectedSegment : s.probation;
+            java.util.Map.Entry<Integer, Product> lru = victims.entrySet().iterator().next();
+            victims.remove(lru.getKey());
+            long w = weigh(lru.getValue());
+            if (victims == s.probation) s.probationBytes -= w;
+            else s.protectedBytes -= w;
+            evictions.increment();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum(), total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    //Backend reads actually made; misses that joined another thread's load are counted in getSharedLoadCount
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    public long getSharedLoadCount() {
+        return sharedLoads.sum();
+    }
+
+    public long getFlushedWriteCount() {
+        return flushedWrites.sum();
+    }
+
+    public int getPendingWriteCount() {
+        return pendingWrites.size();
+    }
+
+    public java.io.IOException getLastWriteFailure() {
+        return lastWriteFailure;
+    }
+
+    public long getWeightedBytes() {
+        long bytes = 0;
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                bytes += s.probationBytes + s.protectedBytes;
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void productAdded(Product product) {
+        Product copy = product.copy();
+        writeFromListener(copy.getProductId(), copy);
+    }
+
+    @Override
+    public void productUpdated(Product product, double oldPrice, int oldQuantity) {
+        productAdded(product);
+    }
+
+    @Override
+    public void productRemoved(Product product) {
+        writeFromListener(product.getProductId(), REMOVED);
+    }
+
+    //Drains the write-behind queue before closing the backend
+    @Override
+    public void close() throws java.io.IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, java.util.concurrent.TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        backend.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d (%.1f%% hit) loads=%d shared=%d evictions=%d bytes=%d pending=%d",
+                getHitCount(), getMissCount(), getHitRate() * 100, getLoadCount(), getSharedLoadCount(),
+                getEvictionCount(), getWeightedBytes(), getPendingWriteCount());
+    }
+}
+
+//Cached Inventory Manager Class (the backend is the source of truth: the manager keeps only the IDs in memory
+//and reads products through a bounded InventoryCache, so opening it loads nothing but the ID list)
+class CachedInventoryManager implements Inventory, AutoCloseable {
+
+    private static final long DEFAULT_CACHE_BYTES = 16L << 20;
+
+    private final InventoryBackend backend;
+    private final InventoryCache cache;
+    private final ProductIdIndex ids;
+    private final int capacityLimit;
+    private InventoryListener[] listeners = new InventoryListener[0];
+
+    //Writes through, so the backend is current after every change; nothing else may change the backend meanwhile
+    public CachedInventoryManager(InventoryBackend backend) throws java.io.IOException {
+        this(backend, DEFAULT_CACHE_BYTES, 0, InventoryManager.UNLIMITED);
+    }
+
+    //A positive flush period queues writes behind the cache instead, and a failed flush is retried on the next one
+    public CachedInventoryManager(InventoryBackend backend, long cacheBytes, long flushMillis, int capacityLimit) throws java.io.IOException {
+        if (capacityLimit <= 0)
+            throw new IllegalArgumentException("Capacity must be positive.");
+        this.backend = backend;
+        this.capacityLimit = capacityLimit;
+        ids = new ProductIdIndex(16);
+        backend.forEachId(id -> ids.put(id, 0));
+        cache = new InventoryCache(backend, cacheBytes, flushMillis);
+    }
+
+    public InventoryCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public synchronized int getCount() {
+        return ids.size();
+    }
+
+    @Override
+    public int getCapacityLimit() {
+        return capacityLimit;
+    }
+
+    @Override
+    public synchronized void addInventoryListener(InventoryListener listener) {
+        listeners = java.util.Arrays.copyOf(listeners, listeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+    }
+
+    @Override
+    public synchronized void removeInventoryListener(InventoryListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                InventoryListener[] next = new InventoryListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, next, 0, i);
+                System.arraycopy(listeners, i + 1, next, i, next.length - i);
+                listeners = next;
+                return;
+            }
+        }
+    }
+
+    //Runs outside the lock, once the change has reached every listener
+    private void delivered() {
+        InventoryListener[] ls;
+        synchronized (this) {
+            ls = listeners;
+        }
+        for (InventoryListener l : ls) l.changeDelivered();
+    }
+
+    //A backend failure reaches the caller as UncheckedIOException; a failed write changes nothing,
+    //since the cache only installs a change once the backend or its queue has it
+    private Product read(int id) {
+        try {
+            return cache.get(id);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    private void write(Product p) {
+        try {
+            cache.put(p);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    private void erase(int id) {
+        try {
+            cache.remove(id);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    //A copy of its own, so it can be changed and handed to listeners as it is
+    private Product stored(int id) throws ProductNotFoundException {
+        Product p = ids.contains(id) ? read(id) : null;
+        if (p == null)
+            throw new ProductNotFoundException("Product with ID " + id + " not found.");
+        return p;
+    }
+
+    @Override
+    public void addProduct(Product product) throws DuplicateProductException, InventoryFullException, InvalidInputException {
+        try {
+            synchronized (this) {
+                if (ids.contains(product.getProductId())) {
+                    throw new DuplicateProductException("Product with ID " + product.getProductId() + " already exists.");
+                }
+
+                if (ids.size() >= capacityLimit) {
+                    throw new InventoryFullException("Inventory is full. Cannot add more products.");
+                }
+
+                for (InventoryListener l : listeners) l.checkProduct(product);
+                backend.checkProduct(product);
+                for (InventoryListener l : listeners) l.checkRoom(1);
+
+                write(product);
+                ids.put(product.getProductId(), 0);
+                if (listeners.length > 0) {
+                    Product added = product.copy();
+                    for (InventoryListener l : listeners) l.productAdded(added);
+                }
+            }
+        } finally {
+            delivered();
+        }
+    }
+
+    //Takes no lock, so a slow backend load holds up neither changes nor other reads
+    @Override
+    public Product findProductNull(int id) {
+        return read(id);
+    }
+
+    @Override
+    public Product searchProductById(int id) throws ProductNotFoundException {
+        Product p = findProductNull(id);
+        if (p == null)
+            throw new ProductNotFoundException("Product with ID " + id + " not found.");
+        return p;
+    }
+
+    @Override
+    public void updateProductById(int id, Double newPrice, Integer newQty) throws ProductNotFoundException, InvalidInputException {
+        try {
+            synchronized (this) {
+                Product p = stored(id);
+
+                if (newPrice != null && newPrice < 0)
+                    throw new InvalidInputException("Price cannot be negative.");
+
+                if (newQty != null && newQty < 0)
+                    throw new InvalidInputException("Quantity cannot be negative.");
+
+                double oldPrice = p.getPrice();
+                int oldQty = p.getQuantity();
+                if (newPrice != null) p.setPrice(newPrice);
+                if (newQty != null) p.setQuantity(newQty);
+                write(p);
+                for (InventoryListener l : listeners) l.productUpdated(p, oldPrice, oldQty);
+            }
+        } finally {
+            delivered();
+        }
+    }
+
+    @Override
+    public int adjustQuantity(int id, int delta) throws ProductNotFoundException, InvalidInputException {
+        try {
+            synchronized (this) {
+                Product p = stored(id);
+                int old = p.getQuantity();
+                int next = p.adjustStock(delta);
+                write(p);
+                for (InventoryListener l : listeners) l.productUpdated(p, p.getPrice(), old);
+                return next;
+            }
+        } finally {
+            delivered();
+        }
+    }
+
+    @Override
+    public boolean reserve(int id, int n) throws ProductNotFoundException, InvalidInputException {
+        try {
+            synchronized (this) {
+                Product p = stored(id);
+                int old = p.getQuantity();
+                if (p.reserveStock(n) < 0) return false;
+                write(p);
+                for (InventoryListener l : listeners) l.productUpdated(p, p.getPrice(), old);
+                return true;
+            }
+        } finally {
+            delivered();
+        }
+    }
+
+    @Override
+    public boolean compareAndSetQuantity(int id, int expected, int newQty) throws ProductNotFoundException, InvalidInputException {
+        try {
+            synchronized (this) {
+                Product p = stored(id);
+                if (!p.compareAndSetStock(expected, newQty)) return false;
+                write(p);
+                for (InventoryListener l : listeners) l.productUpdated(p, p.getPrice(), expected);
+                return true;
+            }
+        } finally {
+            delivered();
+        }
+    }
+
+    @Override
+    public void deleteProductById(int id) throws ProductNotFoundException {
+        try {
+            synchronized (this) {
+                Product removed = stored(id);
+                erase(id);
+                ids.remove(id);
+                for (InventoryListener l : listeners) l.productRemoved(removed);
+            }
+        } finally {
+            delivered();
+        }
+    }
+
+    //Reads through the cache too; a full pass only cycles the probation segment, so the hot products stay cached
+    @Override
+    public void forEach(java.util.function.Consumer<Product> action) {
+        int[] all;
+        synchronized (this) {
+            all = ids.keys().toArray();
+        }
+        for (int id : all) {
+            Product p = read(id);
+            if (p != null) action.accept(p);
+        }
+    }
+
+    //Drains queued writes and closes the backend
+    @Override
+    public void close() throws java.io.IOException {
+        cache.close();
+    }
+}
+
+//Binary product encoding shared by the journal and snapshots
+class ProductCodec {
+
+    static final java.nio.charset.Charset UTF8 = java.nio.charset.StandardCharsets.UTF_8;
+
+    static int encodedSize(Product p) {
+        int size = 4 + 8 + 4 + 2 + p.getProductName().length() * 3 + 2;
+        if (p instanceof PerishableProduct) size += ((PerishableProduct) p).getExpiryDate().length() * 3;
+        return size;
+    }
+
+    static void encode(java.nio.ByteBuffer out, Product p) {
+        byte[] name = p.getProductName().getBytes(UTF8);
+        out.putInt(p.getProductId());
+        out.putDouble(p.getPrice());
+        out.putInt(p.getQuantity());
+        out.putShort((short) name.length);
+        out.put(name);
+        if (p instanceof PerishableProduct) {
+            byte[] expiry = ((PerishableProduct) p).getExpiryDate().getBytes(UTF8);
+            out.putShort((short) expiry.length);
+            out.put(expiry);
+        } else {
+            out.putShort((short) -1);
+        }
+    }
+
+    static Product decode(java.nio.ByteBuffer in) {
+        int id = in.getInt();
+        double price = in.getDouble();
+        int quantity = in.getInt();
+        byte[] name = new byte[in.getShort()];
+        in.get(name);
+        int expiryLength = in.getShort();
+        if (expiryLength < 0) return new Product(id, new String(name, UTF8), price, quantity);
+        byte[] expiry = new byte[expiryLength];
+        in.get(expiry);
+        return new PerishableProduct(id, new String(name, UTF8), price, quantity, new String(expiry, UTF8));
+    }
+}
+
+//Latency Histogram (power-of-two nanosecond buckets, safe to record from many threads)
+class LatencyHistogram {
+
+    private final java.util.concurrent.atomic.AtomicLongArray buckets = new java.util.concurrent.atomic.AtomicLongArray(64);
+    private final java.util.concurrent.atomic.LongAdder count = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder total = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.AtomicLong max = new java.util.concurrent.atomic.AtomicLong();
+
+    public void record(long nanos) {
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+        count.increment();
+        total.add(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+    //Upper bound of the bucket holding the given percentile (0-100)
+    public long percentileNanos(double percentile) {
+        long n = count.sum();
+        long rank = (long) Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+        for (int b = 0; b < 64; b++) {
+            seen += buckets.get(b);
+            if (seen >= rank && seen > 0) return b == 63 ? getMaxNanos() : Math.min((1L << (b + 1)) - 1, getMaxNanos());
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1fus p50<=%.1fus p99<=%.1fus p99.9<=%.1fus max=%.1fus", getCount(),
+                getMeanNanos() / 1e3, percentileNanos(50) / 1e3, percentileNanos(99) / 1e3,
+                percentileNanos(99.9) / 1e3, getMaxNanos() / 1e3);
+    }
+}
+
+//Inventory Journal (write-ahead log with group commit and snapshots)
+//The log is split into generations; a snapshot starts a new one and deletes the older ones once it is durable.
+//Records are whole products or deletes, so replaying a generation the snapshot already covers changes nothing.
+class InventoryJournal implements InventoryListener, AutoCloseable {
+
+    private static final byte PUT = 1, DELETE = 2;
+    private static final String LOG_PREFIX = "journal-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+
+    private final java.nio.file.Path dir;
+    private final java.util.concurrent.locks.ReentrantLock lock = new java.util.concurrent.locks.ReentrantLock();
+    private final java.util.concurrent.locks.Condition pending = lock.newCondition();
+    private final java.util.concurrent.locks.Condition synced = lock.newCondition();
+    private final LatencyHistogram appendLatency = new LatencyHistogram();
+    private final Thread flusher;
+    private final java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+
+    private FileChannel log;
+    private long generation;
+    private java.nio.ByteBuffer active = java.nio.ByteBuffer.allocate(1 << 16);
+    private java.nio.ByteBuffer writing = java.nio.ByteBuffer.allocate(1 << 16);
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean flushing;
+    private boolean snapshotting;
+    private boolean closed;
+    private java.io.IOException failure;
+    private long syncCount;
+
+    //Latest record this thread appended while the manager was delivering a change, and when the first one was;
+    //the wait for it to reach disk happens in changeDelivered, so other threads' changes can join the same fsync
+    private final ThreadLocal<long[]> undelivered = ThreadLocal.withInitial(() -> new long[2]);
+
+    private InventoryManager snapshotSource;
+    private Runnable stateFlush;
+    private int snapshotEvery;
+    private int sinceSnapshot;
+
+    public InventoryJournal(java.nio.file.Path dir) throws java.io.IOException {
+        this.dir = java.nio.file.Files.createDirectories(dir);
+        long[] generations = generations();
+        generation = generations.length == 0 ? 1 : generations[generations.length - 1];
+        log = openLog(generation);
+        log.position(log.size());
+        syncDirectory();
+        flusher = new Thread(this::flushLoop, "inventory-journal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public LatencyHistogram getAppendLatency() {
+        return appendLatency;
+    }
+
+    //Number of fsyncs so far; far below the number of records when writers are being grouped
+    public long getSyncCount() {
+        lock.lock();
+        try {
+            return syncCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //Writes a snapshot of the manager every given number of logged changes, then drops the log it covers
+    public void attach(InventoryManager manager, int snapshotEvery) {
+        this.snapshotSource = manager;
+        this.snapshotEvery = snapshotEvery;
+        manager.addInventoryListener(this);
+    }
+
+    //For a manager whose state another listener already stores: attach that store first, and every given
+    //number of changes it is flushed in place of a snapshot
+    public void attach(InventoryManager manager, int checkpointEvery, Runnable stateFlush) {
+        this.stateFlush = stateFlush;
+        attach(manager, checkpointEvery);
+    }
+
+    public void logPut(Product p) {
+        append(putRecord(p));
+    }
+
+    public void logDelete(int id) {
+        append(deleteRecord(id));
+    }
+
+    private static java.nio.ByteBuffer putRecord(Product p) {
+        java.nio.ByteBuffer body = java.nio.ByteBuffer.allocate(1 + ProductCodec.encodedSize(p));
+        body.put(PUT);
+        ProductCodec.encode(body, p);
+        return body.flip();
+    }
+
+    private static java.nio.ByteBuffer deleteRecord(int id) {
+        return java.nio.ByteBuffer.allocate(5).put(DELETE).putInt(id).flip();
+    }
+
+    //Returns once the record, and everything appended before it, is on disk
+    private void append(java.nio.ByteBuffer body) {
+        long start = System.nanoTime();
+        awaitDurable(enqueue(body), start);
+    }
+
+    //Called while the manager delivers a change, so records enter the log in the order the changes committed
+    private void appendDuringDelivery(java.nio.ByteBuffer body) {
+        long[] mine = undelivered.get();
+        if (mine[0] == 0) mine[1] = System.nanoTime();
+        mine[0] = enqueue(body);
+    }
+
+    private long enqueue(java.nio.ByteBuffer body) {
+        lock.lock();
+        try {
+            if (failure != null) throw new java.io.UncheckedIOException(failure);
+            if (closed) throw new IllegalStateException("Journal is closed.");
+            int needed = 8 + body.remaining();
+            if (active.remaining() < needed) {
+                java.nio.ByteBuffer bigger = java.nio.ByteBuffer.allocate(Math.max(active.capacity() * 2, active.position() + needed));
+                active.flip();
+                bigger.put(active);
+                active = bigger;
+            }
+            crc.reset();
+            crc.update(body.duplicate());
+            active.putInt(body.remaining()).putInt((int) crc.getValue()).put(body);
+            long seq = ++appendedSeq;
+            pending.signal();
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitDurable(long seq, long start) {
+        lock.lock();
+        try {
+            while (durableSeq < seq && failure == null) synced.awaitUninterruptibly();
+            if (failure != null) throw new java.io.UncheckedIOException(failure);
+        } finally {
+            lock.unlock();
+        }
+        appendLatency.record(System.nanoTime() - start);
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long upTo;
+            FileChannel target;
+            lock.lock();
+            try {
+                while (active.position() == 0 && !closed) pending.awaitUninterruptibly();
+                if (active.position() == 0) return;
+                java.nio.ByteBuffer swap = writing;
+                writing = active;
+                active = swap;
+                active.clear();
+                upTo = appendedSeq;
+                target = log;
+                flushing = true;
+            } finally {
+                lock.unlock();
+            }
+
+            java.io.IOException error = null;
+            try {
+                writing.flip();
+                while (writing.hasRemaining()) target.write(writing);
+                target.force(false);
+            } catch (java.io.IOException ex) {
+                error = ex;
+            }
+            writing.clear();
+
+            lock.lock();
+            try {
+                flushing = false;
+                if (error != null) failure = error;
+                else durableSeq = upTo;
+                syncCount++;
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //Only switching to a new log generation holds the append lock; the snapshot itself is written from a
+    //point-in-time view while appends carry on, so call it on the thread that changes the manager
+    public void snapshot(InventoryManager manager) throws java.io.IOException {
+        InventorySnapshot view = null;
+        long cut;
+        lock.lock();
+        try {
+            while (flushing && failure == null) synced.awaitUninterruptibly();
+            if (failure != null) throw failure;
+            if (snapshotting) return;
+            cut = generation + 1;
+            FileChannel next = openLog(cut);
+            //The new file must survive a crash before any record acknowledged from it does
+            syncDirectory();
+            log.close();
+            log = next;
+            generation = cut;
+            if (stateFlush == null) view = manager.snapshot();
+            sinceSnapshot = 0;
+            snapshotting = true;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            if (stateFlush != null) stateFlush.run();
+            else writeSnapshot(view);
+            for (long gen : generations()) {
+                if (gen < cut) java.nio.file.Files.deleteIfExists(logPath(gen));
+            }
+            syncDirectory();
+        } finally {
+            lock.lock();
+            try {
+                snapshotting = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void writeSnapshot(InventorySnapshot view) throws java.io.IOException {
+        java.nio.file.Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, java.nio.file.StandardOpenOption.CREATE,
+                java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+            java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(1 << 16);
+            buf.putInt(view.getCount());
+            java.io.IOException[] writeError = {null};
+            view.forEach(p -> {
+                if (writeError[0] != null) return;
+                try {
+                    if (buf.remaining() < ProductCodec.encodedSize(p)) drain(out, buf);
+                    ProductCodec.encode(buf, p);
+                } catch (java.io.IOException ex) {
+                    writeError[0] = ex;
+                }
+            });
+            if (writeError[0] != null) throw writeError[0];
+            drain(out, buf);
+            out.force(true);
+        }
+        java.nio.file.Files.move(tmp, dir.resolve(SNAPSHOT_FILE),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        //The rename is only durable once the directory is
+        syncDirectory();
+    }
+
+    private static void drain(FileChannel out, java.nio.ByteBuffer buf) throws java.io.IOException {
+        buf.flip();
+        while (buf.hasRemaining()) out.write(buf);
+        buf.clear();
+    }
+
+    //Windows cannot open a directory for syncing, but NTFS journals renames and deletes on its own
+    private void syncDirectory() throws java.io.IOException {
+        try (FileChannel d = FileChannel.open(dir, java.nio.file.StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (java.nio.file.AccessDeniedException ex) {
+            //Nothing to do
+        }
+    }
+
+    private java.nio.file.Path logPath(long gen) {
+        return dir.resolve(LOG_PREFIX + gen + LOG_SUFFIX);
+    }
+
+    private FileChannel openLog(long gen) throws java.io.IOException {
+        return FileChannel.open(logPath(gen), java.nio.file.StandardOpenOption.CREATE,
+                java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE);
+    }
+
+    //Log generations present in the directory, oldest first
+    private long[] generations() throws java.io.IOException {
+        try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.list(dir)) {
+            return files.map(f -> f.getFileName().toString())
+                    .filter(name -> name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX))
+                    .map(name -> name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length()))
+                    .filter(gen -> !gen.isEmpty() && gen.chars().allMatch(Character::isDigit))
+                    .mapToLong(Long::parseLong).sorted().toArray();
+        }
+    }
+
+    //Rebuilds state from the last snapshot plus every log generation still on disk; the manager may already
+    //hold a stored state instead, as long as it is no older than the oldest generation.
+    //Call before attaching the journal to the manager
+    public int recover(InventoryManager manager) throws java.io.IOException {
+        java.nio.file.Path snapshotPath = dir.resolve(SNAPSHOT_FILE);
+        if (java.nio.file.Files.exists(snapshotPath)) {
+            try (FileChannel in = FileChannel.open(snapshotPath, java.nio.file.StandardOpenOption.READ)) {
+                java.nio.ByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                int n = buf.getInt();
+                java.util.ArrayList<Product> products = new java.util.ArrayList<>(n);
+                for (int i = 0; i < n; i++) products.add(ProductCodec.decode(buf));
+                if (!manager.addAll(products).isApplied())
+                    throw new java.io.IOException("Snapshot does not fit into the given inventory.");
+            }
+        }
+
+        int[] replayed = {0};
+        for (long gen : generations()) {
+            if (gen == generation) {
+                long end = replayLog(log, manager, replayed);
+                //A torn tail record is dropped so new records are appended after the last good one
+                log.truncate(end);
+                log.position(end);
+            } else {
+                try (FileChannel older = FileChannel.open(logPath(gen), java.nio.file.StandardOpenOption.READ)) {
+                    replayLog(older, manager, replayed);
+                }
+            }
+        }
+        return replayed[0];
+    }
+
+    //Returns where the last intact record ends
+    private long replayLog(FileChannel in, InventoryManager manager, int[] replayed) throws java.io.IOException {
+        java.nio.ByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        while (buf.remaining() >= 8) {
+            int start = buf.position();
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if (length <= 0 || length > buf.remaining()) {
+                buf.position(start);
+                break;
+            }
+            java.nio.ByteBuffer body = buf.slice(buf.position(), length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                buf.position(start);
+                break;
+            }
+            buf.position(buf.position() + length);
+            replay(manager, body);
+            replayed[0]++;
+        }
+        return buf.position();
+    }
+
+    private static void replay(InventoryManager manager, java.nio.ByteBuffer body) {
+        try {
+            if (body.get() == PUT) {
+                Product p = ProductCodec.decode(body);
+                if (manager.findProductNull(p.getProductId()) == null) manager.addProduct(p);
+                else manager.updateProductById(p.getProductId(), p.getPrice(), p.getQuantity());
+            } else {
+                int id = body.getInt();
+                if (manager.findProductNull(id) != null) manager.deleteProductById(id);
+            }
+        } catch (DuplicateProductException | InventoryFullException | ProductNotFoundException | InvalidInputException ex) {
+            throw new IllegalStateException("Journal does not replay cleanly: " + ex.getMessage(), ex);
+        }
+    }
+
+    //The manager hands over one change at a time in commit order, and a stock move's event is a copy holding
+    //the quantity it committed, so the record encodes exactly that state
+    @Override
+    public void productAdded(Product product) {
+        appendDuringDelivery(putRecord(product));
+        snapshotIfDue();
+    }
+
+    @Override
+    public void productUpdated(Product product, double oldPrice, int oldQuantity) {
+        productAdded(product);
+    }
+
+    @Override
+    public void productRemoved(Product product) {
+        appendDuringDelivery(deleteRecord(product.getProductId()));
+        snapshotIfDue();
+    }
+
+    @Override
+    public void changeDelivered() {
+        long[] mine = undelivered.get();
+        long seq = mine[0];
+        if (seq == 0) return;
+        mine[0] = 0;
+        awaitDurable(seq, mine[1]);
+    }
+
+    private void snapshotIfDue() {
+        if (snapshotSource == null || ++sinceSnapshot < snapshotEvery) return;
+        try {
+            snapshot(snapshotSource);
+        } catch (java.io.IOException ex) {
+            throw new java.io.UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public void close() throws java.io.IOException {
+        lock.lock();
+        try {
+            closed = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+}
+
+//Streaming CSV and binary import/export
+class ProductCsv {
+
+    static final String HEADER = "id,name,price,quantity,expiry";
+    private static final int BUFFER_BYTES = 1 << 16;
+    private static final int MAX_LINE_BYTES = 1 << 20;
+
+    //Reusable row parser: numeric fields are parsed straight from the bytes without creating Strings.
+    //Fields may be quoted as in RFC 4180, so a row can hold commas, quotes and line breaks
+    static class RowParser {
+        private final int[] starts = new int[5];
+        private final int[] ends = new int[5];
+        private final boolean[] escaped = new boolean[5];
+        private final boolean[] quoted = new boolean[5];
+
+        Product parse(byte[] line, int from, int to, long lineNumber) throws InvalidInputException {
+            if (to > from && line[to - 1] == '\r') to--;
+            int field = 0;
+            int i = from;
+            while (true) {
+                escaped[field] = false;
+                quoted[field] = i < to && line[i] == '"';
+                if (quoted[field]) {
+                    starts[field] = ++i;
+                    while (true) {
+                        if (i == to) throw invalid(lineNumber, "unterminated quoted field");
+                        if (line[i] == '"') {
+                            if (i + 1 == to || line[i + 1] != '"') break;
+                            escaped[field] = true;
+                            i++;
+                        }
+                        i++;
+                    }
+                    ends[field] = i++;
+                    if (i < to && line[i] != ',') throw invalid(lineNumber, "text after a closing quote");
+                } else {
+                    starts[field] = i;
+                    while (i < to && line[i] != ',') i++;
+                    ends[field] = i;
+                }
+                if (i == to) break;
+                if (field == 4) throw invalid(lineNumber, "too many fields");
+                field++;
+                i++;
+            }
+            if (field < 3) throw invalid(lineNumber, "expected at least 4 fields");
+
+            int id = (int) parseLong(line, starts[0], ends[0], lineNumber);
+            String name = text(line, 1);
+            if (name.isEmpty()) throw invalid(lineNumber, "product name cannot be empty");
+            double price = parseDouble(line, starts[2], ends[2], lineNumber);
+            long quantity = parseLong(line, starts[3], ends[3], lineNumber);
+            if (price < 0 || quantity < 0) throw invalid(lineNumber, "price or quantity cannot be negative");
+            if (quantity > Integer.MAX_VALUE) throw invalid(lineNumber, "quantity is out of range");
+            if (field == 4 && ends[4] > starts[4]) {
+                String expiry = text(line, 4);
+                if (!expiry.isEmpty()) return new PerishableProduct(id, name, price, (int) quantity, expiry);
+            }
+            return new Product(id, name, price, (int) quantity);
+        }
+
+        //A quoted field is kept exactly as written; only bare fields lose the spaces around them
+        private String text(byte[] line, int field) {
+            String s = new String(line, starts[field], ends[field] - starts[field], ProductCodec.UTF8);
+            if (escaped[field]) s = s.replace("\"\"", "\"");
+            return quoted[field] ? s : s.trim();
+        }
+
+        private static long parseLong(byte[] b, int from, int to, long lineNumber) throws InvalidInputException {
+            while (from < to && b[from] == ' ') from++;
+            while (to > from && b[to - 1] == ' ') to--;
+            boolean negative = from < to && b[from] == '-';
+            if (negative) from++;
+            if (from == to || to - from > 10) throw invalid(lineNumber, "bad integer");
+            long v = 0;
+            for (int i = from; i < to; i++) {
+                int d = b[i] - '0';
+                if (d < 0 || d > 9) throw invalid(lineNumber, "bad integer");
+                v = v * 10 + d;
+            }
+            if (negative) v = -v;
+            if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) throw invalid(lineNumber, "integer out of range");
+            return v;
+        }
+
+        //Plain decimals are parsed inline; anything else (exponents, long fractions) falls back to Double.parseDouble
+        private static double parseDouble(byte[] b, int from, int to, long lineNumber) throws InvalidInputException {
+            while (from < to && b[from] == ' ') from++;
+            while (to > from && b[to - 1] == ' ') to--;
+            int i = from;
+            boolean negative = i < to && b[i] == '-';
+            if (negative) i++;
+            long mantissa = 0;
+            int digits = 0;
+            int scale = 0;
+            boolean dot = false;
+            for (; i < to; i++) {
+                byte c = b[i];
+                if (c == '.' && !dot) {
+                    dot = true;
+                } else if (c >= '0' && c <= '9' && digits < 15) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                    if (dot) scale++;
+                } else {
+                    break;
+                }
+            }
+            if (i == to && digits > 0 && scale <= 15) {
+                double v = scale == 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
+                return negative ? -v : v;
+            }
+            double v;
+            try {
+                v = Double.parseDouble(new String(b, from, to - from, java.nio.charset.StandardCharsets.US_ASCII));
+            } catch (NumberFormatException ex) {
+                throw invalid(lineNumber, "bad number");
+            }
+            //Double.parseDouble also takes NaN, Infinity and exponents that overflow
+            if (!Double.isFinite(v)) throw invalid(lineNumber, "number must be finite");
+            return v;
+        }
+
+        private static final double[] POWERS_OF_TEN = new double[16];
+        static {
+            POWERS_OF_TEN[0] = 1;
+            for (int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+
+        private static InvalidInputException invalid(long lineNumber, String why) {
+            return new InvalidInputException("Line " + lineNumber + ": " + why + ".");
+        }
+    }
+
+    //An empty line, or one holding only the CR of a CRLF break, is skipped rather than parsed
+    static boolean isBlank(byte[] buf, int from, int to) {
+        return to == from || (to == from + 1 && buf[from] == '\r');
+    }
+
+    interface LineSink {
+        void line(byte[] buf, int from, int to, long lineNumber) throws InvalidInputException;
+    }
+
+    //Reads the file through one reusable buffer and hands each row's byte range to the sink, along with the
+    //line it starts on; a line break inside a quoted field does not end the row
+    static long forEachLine(FileChannel in, long start, long end, long firstLineNumber, LineSink sink)
+            throws java.io.IOException, InvalidInputException {
+        byte[] buf = new byte[BUFFER_BYTES];
+        java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(buf);
+        long pos = start;
+        long lineNumber = firstLineNumber;
+        int filled = 0;
+        while (true) {
+            bb.limit(buf.length).position(filled);
+            if (pos < end && end - pos < bb.remaining()) bb.limit(filled + (int) (end - pos));
+            int read = pos < end ? in.read(bb, pos) : -1;
+            if (read > 0) {
+                pos += read;
+                filled += read;
+            }
+            int lineStart = 0;
+            int breaks = 0;
+            boolean quoted = false;
+            for (int i = 0; i < filled; i++) {
+                if (buf[i] == '"') {
+                    quoted = !quoted;
+                } else if (buf[i] == '\n') {
+                    breaks++;
+                    if (quoted) continue;
+                    if (!isBlank(buf, lineStart, i)) sink.line(buf, lineStart, i, lineNumber);
+                    lineNumber += breaks;
+                    breaks = 0;
+                    lineStart = i + 1;
+                }
+            }
+            if (read <= 0) {
+                if (!isBlank(buf, lineStart, filled)) sink.line(buf, lineStart, filled, lineNumber++);
+                return lineNumber - firstLineNumber;
+            }
+            filled -= lineStart;
+            System.arraycopy(buf, lineStart, buf, 0, filled);
+            if (filled == buf.length) {
+                if (buf.length >= MAX_LINE_BYTES) throw new InvalidInputException("Line " + lineNumber + ": line is too long.");
+                buf = java.util.Arrays.copyOf(buf, buf.length * 2);
+                bb = java.nio.ByteBuffer.wrap(buf);
+            }
+        }
+    }
+
+    //Streams rows into the manager in batches of batchSize; memory use is bounded by one batch
+    public static long importCsv(java.nio.file.Path file, InventoryManager manager, int batchSize)
+            throws java.io.IOException, InvalidInputException, DuplicateProductException, InventoryFullException {
+        RowParser parser = new RowParser();
+        java.util.ArrayList<Product> batch = new java.util.ArrayList<>(batchSize);
+        long[] imported = {0};
+        try (FileChannel in = FileChannel.open(file, java.nio.file.StandardOpenOption.READ)) {
+            forEachLine(in, 0, in.size(), 1, (buf, from, to, lineNumber) -> {
+                if (lineNumber == 1 && startsWith(buf, from, to, HEADER)) return;
+                batch.add(parser.parse(buf, from, to, lineNumber));
+                if (batch.size() == batchSize) {
+                    imported[0] += applyBatch(manager, batch);
+                }
+            });
+        } catch (BatchRejected ex) {
+            throw ex.unwrap();
+        }
+        if (!batch.isEmpty()) {
+            try {
+                imported[0] += applyBatch(manager, batch);
+            } catch (BatchRejected ex) {
+                throw ex.unwrap();
+            }
+        }
+        return imported[0];
+    }
+
+    static boolean startsWith(byte[] buf, int from, int to, String prefix) {
+        if (to - from < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) if (buf[from + i] != prefix.charAt(i)) return false;
+        return true;
+    }
+
+    private static int applyBatch(InventoryManager manager, java.util.ArrayList<Product> batch) {
+        BatchResult result = manager.addAll(batch);
+        if (!result.isApplied()) {
+            for (int i = 0; i < result.size(); i++) {
+                if (result.getStatus(i) != BatchResult.Status.OK) throw new BatchRejected(result.getStatus(i), result.getMessage(i));
+            }
+        }
+        int n = batch.size();
+        batch.clear();
+        return n;
+    }
+
+    //Carries a rejected batch out of the line callback
+    static class BatchRejected extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final BatchResult.Status status;
+
+        BatchRejected(BatchResult.Status status, String message) {
+            super(message, null, false, false);
+            this.status = status;
+        }
+
+        InvalidInputException unwrap() throws DuplicateProductException, InventoryFullException {
+            if (status == BatchResult.Status.DUPLICATE) throw new DuplicateProductException(getMessage());
+            if (status == BatchResult.Status.FULL) throw new InventoryFullException(getMessage());
+            return new InvalidInputException(getMessage());
+        }
+    }
+
+    public static long exportCsv(InventoryManager manager, java.nio.file.Path file) throws java.io.IOException {
+        return exportCsv(manager::forEach, file);
+    }
+
+    //Exports a consistent point-in-time view while the manager keeps taking writes
+    public static long exportCsv(InventorySnapshot snapshot, java.nio.file.Path file) throws java.io.IOException {
+        return exportCsv(snapshot::forEach, file);
+    }
+
+    private static long exportCsv(java.util.function.Consumer<java.util.function.Consumer<Product>> source, java.nio.file.Path file) throws java.io.IOException {
+        try (FileChannel out = FileChannel.open(file, java.nio.file.StandardOpenOption.CREATE,
+                java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+            ChannelWriter w = new ChannelWriter(out);
+            w.ascii(HEADER).newline();
+            java.io.IOException[] error = {null};
+            long[] written = {0};
+            source.accept(p -> {
+                if (error[0] != null) return;
+                try {
+                    w.number(p.getProductId()).comma().utf8(csvField(p.getProductName())).comma()
+                            .ascii(Double.toString(p.getPrice())).comma().number(p.getQuantity()).comma();
+                    if (p instanceof PerishableProduct) w.utf8(csvField(((PerishableProduct) p).getExpiryDate()));
+                    w.newline();
+                    written[0]++;
+                } catch (java.io.IOException ex) {
+                    error[0] = ex;
+                }
+            });
+            if (error[0] != null) throw error[0];
+            w.flush();
+            return written[0];
+        }
+    }
+
+    //Quotes text as RFC 4180 does when it holds a separator or a quote, and when it starts or ends with
+    //whitespace that a bare field would lose, so it reads back unchanged
+    static String csvField(String s) {
+        if (!s.isEmpty() && (s.charAt(0) <= ' ' || s.charAt(s.length() - 1) <= ' ')) return '"' + s.replace("\"", "\"\"") + '"';
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') return '"' + s.replace("\"", "\"\"") + '"';
+        }
+        return s;
+    }
+
+    public static long exportBinary(InventoryManager manager, java.nio.file.Path file) throws java.io.IOException {
+        return exportBinary(manager::forEach, file);
+    }
+
+    public static long exportBinary(InventorySnapshot snapshot, java.nio.file.Path file) throws java.io.IOException {
+        return exportBinary(snapshot::forEach, file);
+    }
+
+    private static long exportBinary(java.util.function.Consumer<java.util.function.Consumer<Product>> source, java.nio.file.Path file) throws java.io.IOException {
+        try (FileChannel out = FileChannel.open(file, java.nio.file.StandardOpenOption.CREATE,
+                java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+            ChannelWriter w = new ChannelWriter(out);
+            java.io.IOException[] error = {null};
+            long[] written = {0};
+            source.accept(p -> {
+                if (error[0] != null) return;
+                try {
+                    w.product(p);
+                    written[0]++;
+                } catch (java.io.IOException ex) {
+                    error[0] = ex;
+                }
+            });
+            if (error[0] != null) throw error[0];
+            w.flush();
+            return written[0];
+        }
+    }
+
+    public static long importBinary(java.nio.file.Path file, InventoryManager manager, int batchSize)
+            throws java.io.IOException, DuplicateProductException, InventoryFullException, InvalidInputException {
+        java.util.ArrayList<Product> batch = new java.util.ArrayList<>(batchSize);
+        long imported = 0;
+        try (FileChannel in = FileChannel.open(file, java.nio.file.StandardOpenOption.READ)) {
+            java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(BUFFER_BYTES);
+            buf.limit(0);
+            while (true) {
+                if (buf.remaining() < 4) {
+                    if (!refill(in, buf)) break;
+                    if (buf.remaining() < 4) throw new InvalidInputException("Truncated product file.");
+                }
+                int length = buf.getInt(buf.position());
+                if (length <= 0 || length > MAX_LINE_BYTES) throw new InvalidInputException("Corrupt product file.");
+                if (buf.remaining() < 4 + length) {
+                    if (buf.capacity() < 4 + length) {
+                        java.nio.ByteBuffer bigger = java.nio.ByteBuffer.allocate(4 + length);
+                        bigger.put(buf).flip();
+                        buf = bigger;
+                    }
+                    if (!refill(in, buf) || buf.remaining() < 4 + length) throw new InvalidInputException("Truncated product file.");
+                }
+                buf.getInt();
+                batch.add(ProductCodec.decode(buf));
+                if (batch.size() == batchSize) imported += applyBatchChecked(manager, batch);
+            }
+        }
+        if (!batch.isEmpty()) imported += applyBatchChecked(manager, batch);
+        return imported;
+    }
+
+    private static boolean refill(FileChannel in, java.nio.ByteBuffer buf) throws java.io.IOException {
+        buf.compact();
+        int read = in.read(buf);
+        buf.flip();
+        return read > 0;
+    }
+
+    private static int applyBatchChecked(InventoryManager manager, java.util.ArrayList<Product> batch)
+            throws DuplicateProductException, InventoryFullException, InvalidInputException {
+        try {
+            return applyBatch(manager, batch);
+        } catch (BatchRejected ex) {
+            throw ex.unwrap();
+        }
+    }
+
+    //Small buffered writer over a channel that formats ints without going through String
+    static class ChannelWriter {
+        private final FileChannel out;
+        private final java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(BUFFER_BYTES);
+        private final byte[] digits = new byte[11];
+
+        ChannelWriter(FileChannel out) {
+            this.out = out;
+        }
+
+        private void ensure(int bytes) throws java.io.IOException {
+            if (buf.remaining() < bytes) flush();
+        }
+
+        ChannelWriter number(int v) throws java.io.IOException {
+            ensure(11);
+            if (v == Integer.MIN_VALUE) return ascii(Integer.toString(v));
+            if (v < 0) {
+                buf.put((byte) '-');
+                v = -v;
+            }
+            int i = digits.length;
+            do {
+                digits[--i] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v != 0);
+            buf.put(digits, i, digits.length - i);
+            return this;
+        }
+
+        ChannelWriter ascii(String s) throws java.io.IOException {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) buf.put((byte) s.charAt(i));
+            return this;
+        }
+
+        ChannelWriter utf8(String s) throws java.io.IOException {
+            byte[] b = s.getBytes(ProductCodec.UTF8);
+            if (b.length > buf.capacity()) {
+                flush();
+                out.write(java.nio.ByteBuffer.wrap(b));
+                return this;
+            }
+            ensure(b.length);
+            buf.put(b);
+            return this;
+        }
+
+        ChannelWriter product(Product p) throws java.io.IOException {
+            int size = ProductCodec.encodedSize(p);
+            ensure(4 + size);
+            int lengthAt = buf.position();
+            buf.position(lengthAt + 4);
+            ProductCodec.encode(buf, p);
+            buf.putInt(lengthAt, buf.position() - lengthAt - 4);
+            return this;
+        }
+
+        ChannelWriter comma() throws java.io.IOException {
+            ensure(1);
+            buf.put((byte) ',');
+            return this;
+        }
+
+        ChannelWriter newline() throws java.io.IOException {
+            ensure(1);
+            buf.put((byte) '\n');
+            return this;
+        }
+
+        void flush() throws java.io.IOException {
+            buf.flip();
+            while (buf.hasRemaining()) out.write(buf);
+            buf.clear();
+        }
+    }
+}
+
+//Parallel CSV import (fork/join over line-aligned byte ranges)
+class ParallelCsvImporter {
+
+    private static final int MIN_CHUNK_BYTES = 1 << 16;
+    private static final int MAX_CHUNK_BYTES = 1 << 23;
+
+    static class Report {
+        long rows;
+        int chunks;
+        long splitNanos;
+        long readNanos;
+        long parseNanos;
+        long validateNanos;
+        long insertNanos;
+        long wallNanos;
+
+        //Read and parse times are summed over worker threads; the others are wall-clock
+        @Override
+        public String toString() {
+            return String.format("rows=%d chunks=%d split=%.1fms read=%.1fms(cpu) parse=%.1fms(cpu) validate=%.1fms insert=%.1fms wall=%.1fms",
+                    rows, chunks, splitNanos / 1e6, readNanos / 1e6, parseNanos / 1e6, validateNanos / 1e6,
+                    insertNanos / 1e6, wallNanos / 1e6);
+        }
+    }
+
+    private static class Chunk {
+        final long start;
+        final long end;
+        Product[] products;
+        int count;
+        //Quote characters in the range; an odd running total means the next range starts inside a quoted field
+        int quotes;
+        InvalidInputException error;
+        //Product IDs grouped by the validation partition that owns them
+        int[][] ids;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    //Parses the whole file in parallel, checks every ID once, then adds everything in one batch or nothing;
+    //the manager must not change meanwhile, since the insert trusts the parallel ID check
+    public static Report importCsv(java.nio.file.Path file, InventoryManager manager, java.util.concurrent.ForkJoinPool pool)
+            throws java.io.IOException, InvalidInputException, DuplicateProductException, InventoryFullException {
+        Report report = new Report();
+        long wallStart = System.nanoTime();
+        try (FileChannel in = FileChannel.open(file, java.nio.file.StandardOpenOption.READ)) {
+            long t0 = System.nanoTime();
+            Chunk[] chunks = split(in, pool.getParallelism());
+            report.chunks = chunks.length;
+            report.splitNanos = System.nanoTime() - t0;
+
+            java.util.concurrent.atomic.LongAdder readNanos = new java.util.concurrent.atomic.LongAdder();
+            java.util.concurrent.atomic.LongAdder parseNanos = new java.util.concurrent.atomic.LongAdder();
+            int partitions = Integer.highestOneBit(pool.getParallelism() * 2);
+            try {
+                pool.invoke(new ParseTask(in, chunks, partitions, 0, chunks.length, readNanos, parseNanos));
+                Chunk[] joined = joinQuotedBreaks(chunks);
+                if (joined.length < chunks.length) {
+                    chunks = joined;
+                    report.chunks = chunks.length;
+                    pool.invoke(new ParseTask(in, chunks, partitions, 0, chunks.length, readNanos, parseNanos));
+                }
+            } catch (ChunkFailure ex) {
+                throw (java.io.IOException) ex.getCause();
+            }
+            for (Chunk c : chunks) {
+                if (c.error != null) throw c.error;
+            }
+            report.readNanos = readNanos.sum();
+            report.parseNanos = parseNanos.sum();
+
+            long t1 = System.nanoTime();
+            int total = 0;
+            for (Chunk c : chunks) total += c.count;
+            String duplicate = pool.invoke(new ValidateTask(chunks, manager, partitions, 0, partitions));
+            if (duplicate != null) throw new DuplicateProductException(duplicate);
+            report.validateNanos = System.nanoTime() - t1;
+
+            long t2 = System.nanoTime();
+            java.util.ArrayList<Product> all = new java.util.ArrayList<>(total);
+            for (Chunk c : chunks) {
+                for (int i = 0; i < c.count; i++) all.add(c.products[i]);
+                c.products = null;
+            }
+            BatchResult result = manager.addAllChecked(all);
+            if (!result.isApplied()) {
+                for (int i = 0; i < result.size(); i++) {
+                    if (result.getStatus(i) == BatchResult.Status.FULL) throw new InventoryFullException(result.getMessage(i));
+                    if (result.getStatus(i) == BatchResult.Status.DUPLICATE) throw new DuplicateProductException(result.getMessage(i));
+                    if (result.getStatus(i) != BatchResult.Status.OK) throw new InvalidInputException(result.getMessage(i));
+                }
+            }
+            report.insertNanos = System.nanoTime() - t2;
+            report.rows = total;
+        }
+        report.wallNanos = System.nanoTime() - wallStart;
+        return report;
+    }
+
+    //Cuts the file into ranges that each start at the beginning of a line
+    private static Chunk[] split(FileChannel in, int parallelism) throws java.io.IOException {
+        long size = in.size();
+        long target = Math.max(MIN_CHUNK_BYTES, Math.min(MAX_CHUNK_BYTES, size / Math.max(parallelism * 4, 1)));
+        java.util.ArrayList<Chunk> chunks = new java.util.ArrayList<>();
+        java.nio.ByteBuffer probe = java.nio.ByteBuffer.allocate(4096);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + target);
+            while (end < size) {
+                probe.clear();
+                int read = in.read(probe, end);
+                if (read <= 0) {
+                    end = size;
+                    break;
+                }
+                int nl = -1;
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        nl = i;
+                        break;
+                    }
+                }
+                if (nl >= 0) {
+                    end += nl + 1;
+                    break;
+                }
+                end += read;
+            }
+            chunks.add(new Chunk(start, Math.min(end, size)));
+            start = end;
+        }
+        return chunks.toArray(new Chunk[0]);
+    }
+
+    //Ranges are cut at any line break, which may sit inside a quoted field; such a range is merged with the
+    //next and parsed again, which is rare since only product names and expiry dates can be quoted
+    private static Chunk[] joinQuotedBreaks(Chunk[] chunks) {
+        java.util.ArrayList<Chunk> joined = new java.util.ArrayList<>(chunks.length);
+        int quotes = 0;
+        long start = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            quotes += chunks[i].quotes;
+            if ((quotes & 1) != 0 && i < chunks.length - 1) continue;
+            joined.add(start == chunks[i].start ? chunks[i] : new Chunk(start, chunks[i].end));
+            start = chunks[i].end;
+        }
+        return joined.size() == chunks.length ? chunks : joined.toArray(new Chunk[0]);
+    }
+
+    private static class ChunkFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ChunkFailure(java.io.IOException cause) {
+            super(cause.getMessage(), cause, false, false);
+        }
+    }
+
+    private static class ParseTask extends java.util.concurrent.RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel in;
+        private final Chunk[] chunks;
+        private final int partitions;
+        private final int from;
+        private final int to;
+        private final java.util.concurrent.atomic.LongAdder readNanos;
+        private final java.util.concurrent.atomic.LongAdder parseNanos;
+
+        ParseTask(FileChannel in, Chunk[] chunks, int partitions, int from, int to,
+                  java.util.concurrent.atomic.LongAdder readNanos, java.util.concurrent.atomic.LongAdder parseNanos) {
+            this.in = in;
+            this.chunks = chunks;
+            this.partitions = partitions;
+            this.from = from;
+            this.to = to;
+            this.readNanos = readNanos;
+            this.parseNanos = parseNanos;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ParseTask(in, chunks, partitions, from, mid, readNanos, parseNanos),
+                        new ParseTask(in, chunks, partitions, mid, to, readNanos, parseNanos));
+                return;
+            }
+            Chunk chunk = chunks[from];
+            //Already parsed before its neighbours were merged
+            if (chunk.products != null) return;
+            try {
+                parse(chunk, from == 0);
+            } catch (java.io.IOException ex) {
+                throw new ChunkFailure(ex);
+            }
+        }
+
+        //A bad row is kept in the chunk rather than thrown, since the range may turn out to start inside a quoted field
+        private void parse(Chunk chunk, boolean first) throws java.io.IOException {
+            long t0 = System.nanoTime();
+            byte[] buf = new byte[(int) (chunk.end - chunk.start)];
+            java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(buf);
+            while (bb.hasRemaining()) {
+                if (in.read(bb, chunk.start + bb.position()) < 0) throw new java.io.EOFException("File changed while importing.");
+            }
+            long t1 = System.nanoTime();
+
+            ProductCsv.RowParser parser = new ProductCsv.RowParser();
+            Product[] products = new Product[Math.max(16, buf.length / 32)];
+            int count = 0;
+            int quotes = 0;
+            int lineStart = 0;
+            long lineNumber = 1;
+            long rowLine = 1;
+            for (int i = 0; i <= buf.length; i++) {
+                if (i < buf.length) {
+                    if (buf[i] == '"') quotes++;
+                    if (buf[i] != '\n') continue;
+                    lineNumber++;
+                    if ((quotes & 1) != 0) continue;
+                }
+                if (!ProductCsv.isBlank(buf, lineStart, i) && chunk.error == null
+                        && !(first && rowLine == 1 && ProductCsv.startsWith(buf, lineStart, i, ProductCsv.HEADER))) {
+                    try {
+                        Product p = parser.parse(buf, lineStart, i, rowLine);
+                        if (count == products.length) products = java.util.Arrays.copyOf(products, count * 2);
+                        products[count++] = p;
+                    } catch (InvalidInputException ex) {
+                        chunk.error = new InvalidInputException("Chunk at byte " + chunk.start + ", " + ex.getMessage());
+                    }
+                }
+                rowLine = lineNumber;
+                lineStart = i + 1;
+            }
+            chunk.products = products;
+            chunk.count = count;
+            chunk.quotes = quotes;
+            chunk.ids = bucket(products, count);
+            readNanos.add(t1 - t0);
+            parseNanos.add(System.nanoTime() - t1);
+        }
+
+        //Done here, while the chunk is hot, so each partition only visits its own IDs when validating
+        private int[][] bucket(Product[] products, int count) {
+            int mask = partitions - 1;
+            int[] sizes = new int[partitions];
+            for (int i = 0; i < count; i++) sizes[ProductIdIndex.hash(products[i].getProductId()) & mask]++;
+            int[][] ids = new int[partitions][];
+            for (int b = 0; b < partitions; b++) ids[b] = new int[sizes[b]];
+            java.util.Arrays.fill(sizes, 0);
+            for (int i = 0; i < count; i++) {
+                int id = products[i].getProductId();
+                int b = ProductIdIndex.hash(id) & mask;
+                ids[b][sizes[b]++] = id;
+            }
+            return ids;
+        }
+    }
+
+    //Each partition owns the IDs whose hash falls in it, so partitions can check for duplicates independently
+    private static class ValidateTask extends java.util.concurrent.RecursiveTask<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final Chunk[] chunks;
+        private final InventoryManager manager;
+        private final int partitions;
+        private final int from;
+        private final int to;
+
+        ValidateTask(Chunk[] chunks, InventoryManager manager, int partitions, int from, int to) {
+            this.chunks = chunks;
+            this.manager = manager;
+            this.partitions = partitions;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected String compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                ValidateTask right = new ValidateTask(chunks, manager, partitions, mid, to);
+                right.fork();
+                String left = new ValidateTask(chunks, manager, partitions, from, mid).compute();
+                String r = right.join();
+                return left != null ? left : r;
+            }
+            int owned = 0;
+            for (Chunk c : chunks) owned += c.ids[from].length;
+            ProductIdIndex seen = new ProductIdIndex(owned);
+            for (Chunk c : chunks) {
+                for (int id : c.ids[from]) {
+                    if (seen.contains(id) || manager.findProductNull(id) != null)
+                        return "Product with ID " + id + " already exists.";
+                    seen.put(id, 0);
+                }
+            }
+            return null;
+        }
+    }
+}
+
+//Product Name Index (sorted names for prefixes, trigram postings for substrings)
+class ProductNameIndex implements InventoryListener {
+
+    private static class NameKey implements Comparable<NameKey> {
+        final String name;
+        final int id;
+
+        NameKey(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(NameKey o) {
+            int c = name.compareTo(o.name);
+            return c != 0 ? c : Integer.compare(id, o.id);
+        }
+    }
+
+    private final InventoryManager manager;
+    private final java.util.TreeSet<NameKey> sorted = new java.util.TreeSet<>();
+    private final java.util.HashMap<Long, ProductIdIndex> trigrams = new java.util.HashMap<>();
+    private final ProductIdIndex nameSlots;
+    private String[] names;
+    private int[] slotIds;
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private int slotCount;
+
+    //Indexes what the manager already holds, then follows its changes
+    public ProductNameIndex(InventoryManager manager) {
+        this.manager = manager;
+        nameSlots = new ProductIdIndex(manager.getCount());
+        names = new String[Math.max(16, manager.getCount())];
+        slotIds = new int[names.length];
+        manager.forEach(this::productAdded);
+        manager.addInventoryListener(this);
+    }
+
+    static String normalize(String s) {
+        return s.trim().toLowerCase(java.util.Locale.ROOT);
+    }
+
+    private static long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    @Override
+    public void productAdded(Product product) {
+        int id = product.getProductId();
+        String name = normalize(product.getProductName());
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (slotCount == names.length) {
+                names = java.util.Arrays.copyOf(names, slotCount * 2);
+                slotIds = java.util.Arrays.copyOf(slotIds, slotCount * 2);
+            }
+            slot = slotCount++;
+        }
+        names[slot] = name;
+        slotIds[slot] = id;
+        nameSlots.put(id, slot);
+        sorted.add(new NameKey(name, id));
+        for (int i = 0; i + 3 <= name.length(); i++) {
+            trigrams.computeIfAbsent(trigram(name, i), k -> new ProductIdIndex(4)).put(id, 0);
+        }
+    }
+
+    @Override
+    public void productRemoved(Product product) {
+        int id = product.getProductId();
+        int slot = nameSlots.remove(id);
+        if (slot < 0) return;
+        String name = names[slot];
+        names[slot] = null;
+        if (freeCount == freeSlots.length) freeSlots = java.util.Arrays.copyOf(freeSlots, freeCount * 2);
+        freeSlots[freeCount++] = slot;
+        sorted.remove(new NameKey(name, id));
+        for (int i = 0; i + 3 <= name.length(); i++) {
+            Long key = trigram(name, i);
+            ProductIdIndex postings = trigrams.get(key);
+            if (postings != null) {
+                postings.remove(id);
+                if (postings.size() == 0) trigrams.remove(key);
+            }
+        }
+    }
+
+    //Names starting with the query, in name order
+    public java.util.List<Product> searchPrefix(String query, int k) {
+        java.util.ArrayList<Product> out = new java.util.ArrayList<>(Math.min(k, 64));
+        collectPrefix(normalize(query), k, out);
+        return out;
+    }
+
+    //Prefix matches first, then other names containing the query
+    public java.util.List<Product> search(String query, int k) {
+        String q = normalize(query);
+        java.util.ArrayList<Product> out = new java.util.ArrayList<>(Math.min(k, 64));
+        if (q.isEmpty() || k <= 0) return out;
+        collectPrefix(q, k, out);
+        if (out.size() < k) collectSubstring(q, k, out, true);
+        return out;
+    }
+
+    public java.util.List<Product> searchSubstring(String query, int k) {
+        String q = normalize(query);
+        java.util.ArrayList<Product> out = new java.util.ArrayList<>(Math.min(k, 64));
+        if (q.isEmpty() || k <= 0) return out;
+        collectSubstring(q, k, out, false);
+        return out;
+    }
+
+    private void collectPrefix(String q, int k, java.util.List<Product> out) {
+        for (NameKey key : sorted.tailSet(new NameKey(q, Integer.MIN_VALUE))) {
+            if (out.size() >= k || !key.name.startsWith(q)) break;
+            out.add(manager.findProductNull(key.id));
+        }
+    }
+
+    //Upper bound on names containing the query: the size of its rarest trigram's postings
+    public int estimateMatches(String query) {
+        String q = normalize(query);
+        if (q.length() < 3) return manager.getCount();
+        int best = Integer.MAX_VALUE;
+        for (int i = 0; i + 3 <= q.length(); i++) {
+            ProductIdIndex postings = trigrams.get(trigram(q, i));
+            if (postings == null) return 0;
+            best = Math.min(best, postings.size());
+        }
+        return best;
+    }
+
+    //Walks the rarest trigram of the query and checks each candidate; short queries scan names until k are found
+    private void collectSubstring(String q, int k, java.util.List<Product> out, boolean skipPrefixes) {
+        if (q.length() < 3) {
+            for (int slot = 0; slot < slotCount && out.size() < k; slot++) {
+                String name = names[slot];
+                if (name == null || (skipPrefixes && name.startsWith(q)) || !name.contains(q)) continue;
+                out.add(manager.findProductNull(slotIds[slot]));
+            }
+            return;
+        }
+        ProductIdIndex rarest = rarestPostings(q);
+        if (rarest == null) return;
+        rarest.forEachKey(id -> {
+            String name = names[nameSlots.get(id)];
+            if (!(skipPrefixes && name.startsWith(q)) && name.contains(q)) out.add(manager.findProductNull(id));
+            return out.size() < k;
+        });
+    }
+
+    //Null when some trigram of the query occurs in no name at all
+    private ProductIdIndex rarestPostings(String q) {
+        ProductIdIndex rarest = null;
+        for (int i = 0; i + 3 <= q.length(); i++) {
+            ProductIdIndex postings = trigrams.get(trigram(q, i));
+            if (postings == null) return null;
+            if (rarest == null || postings.size() < rarest.size()) rarest = postings;
+        }
+        return rarest;
+    }
+
+    //Unbounded and lazy, for the query engine: each match is looked up only when the stream reaches it,
+    //so a limit or a short-circuiting terminal operation stops the walk. The index must not change meanwhile
+    public java.util.stream.Stream<Product> streamPrefix(String query) {
+        String q = normalize(query);
+        if (q.isEmpty()) return java.util.stream.Stream.empty();
+        return sorted.tailSet(new NameKey(q, Integer.MIN_VALUE)).stream()
+                .takeWhile(key -> key.name.startsWith(q))
+                .map(key -> manager.findProductNull(key.id));
+    }
+
+    public java.util.stream.Stream<Product> streamSubstring(String query) {
+        String q = normalize(query);
+        if (q.isEmpty()) return java.util.stream.Stream.empty();
+        String[] n = names;
+        if (q.length() < 3) {
+            int[] ids = slotIds;
+            return java.util.stream.IntStream.range(0, slotCount)
+                    .filter(slot -> n[slot] != null && n[slot].contains(q))
+                    .mapToObj(slot -> manager.findProductNull(ids[slot]));
+        }
+        ProductIdIndex rarest = rarestPostings(q);
+        if (rarest == null) return java.util.stream.Stream.empty();
+        return rarest.keys().filter(id -> n[nameSlots.get(id)].contains(q)).mapToObj(manager::findProductNull);
+    }
+}
+
+//Expiry Index (perishables ordered by epoch day for expiring-soon and expired queries)
+class ExpiryIndex implements InventoryListener {
+
+    //ProductIdIndex values must be non-negative, so days (years 1..9999) are stored shifted
+    private static final int DAY_BIAS = 1_000_000;
+
+    private final InventoryManager manager;
+    private final java.time.Clock clock;
+    //(day << 32 | id) keys, so a day's products are one contiguous range. The ID's sign bit is flipped, so IDs
+    //within a day run in signed order like every other sort on ID, negative ones first
+    private final java.util.TreeSet<Long> byDay = new java.util.TreeSet<>();
+    private final ProductIdIndex dayOf = new ProductIdIndex(16);
+    //Days before this were covered by an earlier sweep; later additions in that range are kept aside
+    private int sweptBefore = Integer.MIN_VALUE;
+    private java.util.ArrayList<Integer> lateExpired = new java.util.ArrayList<>();
+
+    public ExpiryIndex(InventoryManager manager) {
+        this(manager, java.time.Clock.systemDefaultZone());
+    }
+
+    public ExpiryIndex(InventoryManager manager, java.time.Clock clock) {
+        this.manager = manager;
+        this.clock = clock;
+        manager.forEach(this::productAdded);
+        manager.addInventoryListener(this);
+    }
+
+    private static long key(long day, int id) {
+        return (day << 32) | ((id ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    private static int idOf(long key) {
+        return (int) key ^ Integer.MIN_VALUE;
+    }
+
+    public int size() {
+        return byDay.size();
+    }
+
+    public int today() {
+        return (int) java.time.LocalDate.now(clock).toEpochDay();
+    }
+
+    //Not yet expired and expiring no later than N days from today
+    public java.util.List<Product> expiringWithin(int days) {
+        int today = today();
+        return range(today, (long) today + days + 1);
+    }
+
+    public java.util.List<Product> expired() {
+        return range(Integer.MIN_VALUE, today());
+    }
+
+    public java.util.List<Product> expiringBetween(java.time.LocalDate from, java.time.LocalDate to) {
+        return range(from.toEpochDay(), to.toEpochDay() + 1);
+    }
+
+    public java.time.LocalDate nextExpiry() {
+        Long next = byDay.ceiling(key(today(), Integer.MIN_VALUE));
+        return next == null ? null : java.time.LocalDate.ofEpochDay(next >> 32);
+    }
+
+    //Lazy, in expiry order
+    public java.util.stream.Stream<Product> streamBetween(long fromDay, long toDayExclusive) {
+        return keysBetween(fromDay, toDayExclusive).stream().map(k -> manager.findProductNull(idOf(k)));
+    }
+
+    //Days are clamped to the int range first, since the key only has 32 bits for them
+    private java.util.NavigableSet<Long> keysBetween(long fromDay, long toDayExclusive) {
+        if (fromDay >= toDayExclusive) return java.util.Collections.emptyNavigableSet();
+        long from = Math.max(fromDay, Integer.MIN_VALUE);
+        long to = Math.min(toDayExclusive - 1, Integer.MAX_VALUE);
+        if (from > to) return java.util.Collections.emptyNavigableSet();
+        return byDay.subSet(key(from, Integer.MIN_VALUE), true, key(to, Integer.MAX_VALUE), true);
+    }
+
+    //Assumes expiry days are spread evenly between the first and last indexed day
+    public int estimateBetween(long fromDay, long toDayExclusive) {
+        if (byDay.isEmpty() || fromDay >= toDayExclusive) return 0;
+        long first = byDay.first() >> 32;
+        long last = byDay.last() >> 32;
+        long lo = Math.max(fromDay, first);
+        long hi = Math.min(toDayExclusive - 1, last);
+        if (lo > hi) return 0;
+        return (int) Math.ceil(byDay.size() * (double) (hi - lo + 1) / (last - first + 1));
+    }
+
+    private java.util.List<Product> range(long fromDay, long toDayExclusive) {
+        java.util.ArrayList<Product> out = new java.util.ArrayList<>();
+        for (long k : keysBetween(fromDay, toDayExclusive)) out.add(manager.findProductNull(idOf(k)));
+        return out;
+    }
+
+    //Visits products that expired since the last sweep, optionally deleting them; returns how many were visited
+    public int sweep(java.util.function.Consumer<Product> onExpired, boolean remove) {
+        int today = today();
+        java.util.List<Product> expired = range(sweptBefore, today);
+        for (int id : lateExpired) {
+            Product p = manager.findProductNull(id);
+            if (p != null) expired.add(p);
+        }
+        lateExpired = new java.util.ArrayList<>();
+        sweptBefore = today;
+        for (Product p : expired) {
+            onExpired.accept(p);
+            if (remove) {
+                try {
+                    manager.deleteProductById(p.getProductId());
+                } catch (ProductNotFoundException alreadyGone) {
+                    //deleted by the callback
+                }
+            }
+        }
+        return expired.size();
+    }
+
+    //The executor must be the one thread that mutates the manager
+    public java.util.concurrent.ScheduledFuture<?> startSweeper(java.util.concurrent.ScheduledExecutorService managerThread, long period,
+                                                                java.util.concurrent.TimeUnit unit, java.util.function.Consumer<Product> onExpired, boolean remove) {
+        return managerThread.scheduleWithFixedDelay(() -> sweep(onExpired, remove), 0, period, unit);
+    }
+
+    @Override
+    public void productAdded(Product product) {
+        if (!(product instanceof PerishableProduct)) return;
+        int day = ((PerishableProduct) product).getExpiryDay();
+        if (day == PerishableProduct.UNKNOWN_EXPIRY) return;
+        byDay.add(key(day, product.getProductId()));
+        dayOf.put(product.getProductId(), day + DAY_BIAS);
+        if (day < sweptBefore) lateExpired.add(product.getProductId());
+    }
+
+    //Stock and price moves leave the day alone; only an expiry change moves the product
+    @Override
+    public void productUpdated(Product product, double oldPrice, int oldQuantity) {
+        int stored = dayOf.get(product.getProductId());
+        int day = product instanceof PerishableProduct ? ((PerishableProduct) product).getExpiryDay() : PerishableProduct.UNKNOWN_EXPIRY;
+        if (stored < 0 ? day == PerishableProduct.UNKNOWN_EXPIRY : stored - DAY_BIAS == day) return;
+        productRemoved(product);
+        productAdded(product);
+    }
+
+    @Override
+    public void productRemoved(Product product) {
+        int stored = dayOf.remove(product.getProductId());
+        if (stored >= 0) byDay.remove(key(stored - DAY_BIAS, product.getProductId()));
+    }
+}
+
+//Sorted Block Index ((long key, int id) entries in sorted blocks of at most 256, found through a block directory)
+class SortedBlockIndex {
+
+    private static final int BLOCK = 256;
+
+    private long[][] blockKeys = new long[4][];
+    private int[][] blockIds = new int[4][];
+    private int[] blockSizes = new int[4];
+    private int blockCount = 1;
+    private int size;
+
+    public SortedBlockIndex() {
+        blockKeys[0] = new long[BLOCK];
+        blockIds[0] = new int[BLOCK];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int compare(long k1, int id1, long k2, int id2) {
+        int c = Long.compare(k1, k2);
+        return c != 0 ? c : Integer.compare(id1, id2);
+    }
+
+    //Last block whose first entry is <= (key, id); only block 0 is ever empty, and only when the index is
+    private int findBlock(long key, int id) {
+        int lo = 0, hi = blockCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (compare(blockKeys[mid][0], blockIds[mid][0], key, id) <= 0) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    //First position in block b holding an entry >= (key, id)
+    private int lowerBound(int b, long key, int id) {
+        long[] ks = blockKeys[b];
+        int[] is = blockIds[b];
+        int lo = 0, hi = blockSizes[b];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(ks[mid], is[mid], key, id) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    public void insert(long key, int id) {
+        int b = findBlock(key, id);
+        int pos = lowerBound(b, key, id);
+        if (blockSizes[b] == BLOCK) {
+            split(b);
+            if (pos > BLOCK / 2) {
+                b++;
+                pos -= BLOCK / 2;
+            }
+        }
+        int n = blockSizes[b];
+        System.arraycopy(blockKeys[b], pos, blockKeys[b], pos + 1, n - pos);
+        System.arraycopy(blockIds[b], pos, blockIds[b], pos + 1, n - pos);
+        blockKeys[b][pos] = key;
+        blockIds[b][pos] = id;
+        blockSizes[b]++;
+        size++;
+    }
+
+    public boolean remove(long key, int id) {
+        int b = findBlock(key, id);
+        int pos = lowerBound(b, key, id);
+        int n = blockSizes[b];
+        if (pos == n || blockKeys[b][pos] != key || blockIds[b][pos] != id) return false;
+        System.arraycopy(blockKeys[b], pos + 1, blockKeys[b], pos, n - pos - 1);
+        System.arraycopy(blockIds[b], pos + 1, blockIds[b], pos, n - pos - 1);
+        blockSizes[b]--;
+        size--;
+        if (blockSizes[b] == 0 && blockCount > 1) dropBlock(b);
+        return true;
+    }
+
+    //Visits ids with lo <= key <= hi in key order until the action returns false
+    public boolean forEachInRange(long lo, long hi, java.util.function.IntPredicate action) {
+        if (lo > hi) return true;
+        int b = findBlock(lo, Integer.MIN_VALUE);
+        int pos = lowerBound(b, lo, Integer.MIN_VALUE);
+        for (; b < blockCount; b++, pos = 0) {
+            long[] ks = blockKeys[b];
+            int[] is = blockIds[b];
+            for (int n = blockSizes[b]; pos < n; pos++) {
+                if (ks[pos] > hi) return true;
+                if (!action.test(is[pos])) return false;
+            }
+        }
+        return true;
+    }
+
+    //Lazy cursor over the ids with lo <= key <= hi; the index must not change while it is in use
+    public java.util.PrimitiveIterator.OfInt rangeIterator(long lo, long hi) {
+        int start = findBlock(lo, Integer.MIN_VALUE);
+        int startPos = lowerBound(start, lo, Integer.MIN_VALUE);
+        return new java.util.PrimitiveIterator.OfInt() {
+            private int b = start;
+            private int pos = startPos;
+
+            @Override
+            public boolean hasNext() {
+                while (b < blockCount && pos == blockSizes[b]) {
+                    b++;
+                    pos = 0;
+                }
+                return lo <= hi && b < blockCount && blockKeys[b][pos] <= hi;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) throw new java.util.NoSuchElementException();
+                return blockIds[b][pos++];
+            }
+        };
+    }
+
+    //Upper bound on the entries in [lo, hi] from the block directory alone
+    public int estimateRange(long lo, long hi) {
+        if (lo > hi) return 0;
+        int from = findBlock(lo, Integer.MIN_VALUE);
+        int to = findBlock(hi, Integer.MAX_VALUE);
+        int n = 0;
+        for (int b = from; b <= to; b++) n += blockSizes[b];
+        return n;
+    }
+
+    private void split(int b) {
+        if (blockCount == blockSizes.length) {
+            int cap = blockCount * 2;
+            blockKeys = java.util.Arrays.copyOf(blockKeys, cap);
+            blockIds = java.util.Arrays.copyOf(blockIds, cap);
+            blockSizes = java.util.Arrays.copyOf(blockSizes, cap);
+        }
+        System.arraycopy(blockKeys, b + 1, blockKeys, b + 2, blockCount - b - 1);
+        System.arraycopy(blockIds, b + 1, blockIds, b + 2, blockCount - b - 1);
+        System.arraycopy(blockSizes, b + 1, blockSizes, b + 2, blockCount - b - 1);
+        int half = BLOCK / 2;
+        long[] ks = new long[BLOCK];
+        int[] is = new int[BLOCK];
+        System.arraycopy(blockKeys[b], half, ks, 0, BLOCK - half);
+        System.arraycopy(blockIds[b], half, is, 0, BLOCK - half);
+        blockKeys[b + 1] = ks;
+        blockIds[b + 1] = is;
+        blockSizes[b + 1] = BLOCK - half;
+        blockSizes[b] = half;
+        blockCount++;
+    }
+
+    private void dropBlock(int b) {
+        System.arraycopy(blockKeys, b + 1, blockKeys, b, blockCount - b - 1);
+        System.arraycopy(blockIds, b + 1, blockIds, b, blockCount - b - 1);
+        System.arraycopy(blockSizes, b + 1, blockSizes, b, blockCount - b - 1);
+        blockCount--;
+        blockKeys[blockCount] = null;
+        blockIds[blockCount] = null;
+    }
+}
+
+//Product Range Index (secondary price and quantity indexes kept current by events)
+class ProductRangeIndex implements InventoryListener {
+
+    private final InventoryManager manager;
+    private final SortedBlockIndex byPrice = new SortedBlockIndex();
+    private final SortedBlockIndex byQuantity = new SortedBlockIndex();
+
+    public ProductRangeIndex(InventoryManager manager) {
+        this.manager = manager;
+        manager.forEach(this::productAdded);
+        manager.addInventoryListener(this);
+    }
+
+    //Order-preserving bits of a double; -0.0 is folded into 0.0 first
+    static long priceKey(double price) {
+        long bits = Double.doubleToLongBits(price + 0.0);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    public synchronized int size() {
+        return byPrice.size();
+    }
+
+    public synchronized boolean forEachPriceBetween(double lo, double hi, java.util.function.Predicate<Product> action) {
+        return byPrice.forEachInRange(priceKey(lo), priceKey(hi), id -> action.test(manager.findProductNull(id)));
+    }
+
+    public synchronized boolean forEachQuantityBetween(int lo, int hi, java.util.function.Predicate<Product> action) {
+        return byQuantity.forEachInRange(lo, hi, id -> action.test(manager.findProductNull(id)));
+    }
+
+    //Lazy, in price order; the stream walks the live index, so consume it where no stock move is being delivered
+    public java.util.stream.Stream<Product> streamPriceBetween(double lo, double hi) {
+        return stream(byPrice.rangeIterator(priceKey(lo), priceKey(hi)));
+    }
+
+    //Lazy, in quantity order
+    public java.util.stream.Stream<Product> streamQuantityBetween(int lo, int hi) {
+        return stream(byQuantity.rangeIterator(lo, hi));
+    }
+
+    private java.util.stream.Stream<Product> stream(java.util.PrimitiveIterator.OfInt ids) {
+        return java.util.stream.StreamSupport.intStream(
+                java.util.Spliterators.spliteratorUnknownSize(ids, java.util.Spliterator.ORDERED | java.util.Spliterator.NONNULL), false)
+                .mapToObj(manager::findProductNull);
+    }
+
+    public synchronized int estimatePriceBetween(double lo, double hi) {
+        return byPrice.estimateRange(priceKey(lo), priceKey(hi));
+    }
+
+    public synchronized int estimateQuantityBetween(int lo, int hi) {
+        return byQuantity.estimateRange(lo, hi);
+    }
+
+    public java.util.List<Product> priceBetween(double lo, double hi) {
+        java.util.ArrayList<Product> out = new java.util.ArrayList<>();
+        forEachPriceBetween(lo, hi, out::add);
+        return out;
+    }
+
+    public java.util.List<Product> quantityBelow(int threshold) {
+        java.util.ArrayList<Product> out = new java.util.ArrayList<>();
+        if (threshold > Integer.MIN_VALUE) forEachQuantityBetween(Integer.MIN_VALUE, threshold - 1, out::add);
+        return out;
+    }
+
+    //The manager delivers one event at a time in commit order, and the product in a stock move's event holds the
+    //values that move committed, so the keys removed here are always the ones inserted before
+    @Override
+    public synchronized void productAdded(Product product) {
+        byPrice.insert(priceKey(product.getPrice()), product.getProductId());
+        byQuantity.insert(product.getQuantity(), product.getProductId());
+    }
+
+    @Override
+    public synchronized void productUpdated(Product product, double oldPrice, int oldQuantity) {
+        int id = product.getProductId();
+        double price = product.getPrice();
+        int quantity = product.getQuantity();
+        if (priceKey(oldPrice) != priceKey(price)) {
+            byPrice.remove(priceKey(oldPrice), id);
+            byPrice.insert(priceKey(price), id);
+        }
+        if (oldQuantity != quantity) {
+            byQuantity.remove(oldQuantity, id);
+            byQuantity.insert(quantity, id);
+        }
+    }
+
+    @Override
+    public synchronized void productRemoved(Product product) {
+        byPrice.remove(priceKey(product.getPrice()), product.getProductId());
+        byQuantity.remove(product.getQuantity(), product.getProductId());
+    }
+}
+
+//Inventory Analytics (valuation, low stock, top products and price histogram kept current by events)
+class InventoryAnalytics implements InventoryListener {
+
+    static final double[] DEFAULT_PRICE_BOUNDS = {1, 5, 10, 25, 50, 100, 250, 500, 1000};
+    static final int DEFAULT_LOW_STOCK = 5;
+
+    private static class ValueKey implements Comparable<ValueKey> {
+        final long cents;
+        final int id;
+        final Product product;
+
+        ValueKey(long cents, int id, Product product) {
+            this.cents = cents;
+            this.id = id;
+            this.product = product;
+        }
+
+        //Highest value first
+        @Override
+        public int compareTo(ValueKey o) {
+            int c = Long.compare(o.cents, cents);
+            return c != 0 ? c : Integer.compare(id, o.id);
+        }
+    }
+
+    //One worker's share of a full scan
+    private class Partial {
+        long cents;
+        long quantity;
+        int count;
+        final long[] histogram = new long[priceBounds.length + 1];
+        final java.util.ArrayList<ValueKey> keys = new java.util.ArrayList<>();
+        final java.util.ArrayList<Integer> lowStock = new java.util.ArrayList<>();
+
+        void add(Product p) {
+            long v = valueCents(p.getPrice(), p.getQuantity());
+            cents += v;
+            quantity += p.getQuantity();
+            count++;
+            histogram[bucket(p.getPrice())]++;
+            keys.add(new ValueKey(v, p.getProductId(), p));
+            if (p.getQuantity() <= lowStockThreshold) lowStock.add(p.getProductId());
+        }
+
+        void merge(Partial o) {
+            cents += o.cents;
+            quantity += o.quantity;
+            count += o.count;
+            for (int i = 0; i < histogram.length; i++) histogram[i] += o.histogram[i];
+            keys.addAll(o.keys);
+            lowStock.addAll(o.lowStock);
+        }
+    }
+
+    private final InventoryManager manager;
+    private final int lowStockThreshold;
+    private final double[] priceBounds;
+    private long[] histogram;
+    private long totalCents;
+    private long totalQuantity;
+    private int count;
+    private final java.util.TreeSet<ValueKey> byValue = new java.util.TreeSet<>();
+    //Dense list of low-stock ids with swap-remove, positions looked up by id
+    private final ProductIdIndex lowStockSlots = new ProductIdIndex(16);
+    private int[] lowStockIds = new int[16];
+    private int lowStockCount;
+
+    public InventoryAnalytics(InventoryManager manager) {
+        this(manager, DEFAULT_LOW_STOCK, DEFAULT_PRICE_BOUNDS);
+    }
+
+    //The manager delivers events one at a time in commit order, stock moves from other threads included;
+    //updates and reads are synchronized so a reader on another thread sees each change whole
+    public InventoryAnalytics(InventoryManager manager, int lowStockThreshold, double[] priceBounds) {
+        this.manager = manager;
+        this.lowStockThreshold = lowStockThreshold;
+        this.priceBounds = priceBounds.clone();
+        java.util.Arrays.sort(this.priceBounds);
+        recompute();
+        manager.addInventoryListener(this);
+    }
+
+    //Full rescan in one parallel pass over the storage
+    public synchronized void recompute() {
+        Partial all = manager.stream().parallel().collect(Partial::new, Partial::add, Partial::merge);
+        totalCents = all.cents;
+        totalQuantity = all.quantity;
+        count = all.count;
+        histogram = all.histogram;
+        byValue.clear();
+        byValue.addAll(all.keys);
+        lowStockSlots.clear();
+        lowStockCount = 0;
+        for (int id : all.lowStock) addLowStock(id);
+    }
+
+    public synchronized int getProductCount() {
+        return count;
+    }
+
+    public synchronized double getTotalStockValue() {
+        return totalCents / 100.0;
+    }
+
+    public synchronized long getTotalQuantity() {
+        return totalQuantity;
+    }
+
+    public int getLowStockThreshold() {
+        return lowStockThreshold;
+    }
+
+    public synchronized int getLowStockCount() {
+        return lowStockCount;
+    }
+
+    public synchronized java.util.List<Product> getLowStock() {
+        java.util.ArrayList<Product> out = new java.util.ArrayList<>(lowStockCount);
+        for (int i = 0; i < lowStockCount; i++) out.add(manager.findProductNull(lowStockIds[i]));
+        return out;
+    }
+
+    public synchronized java.util.List<Product> topByValue(int n) {
+        java.util.ArrayList<Product> out = new java.util.ArrayList<>(Math.min(n, count));
+        for (ValueKey key : byValue) {
+            if (out.size() >= n) break;
+            out.add(key.product);
+        }
+        return out;
+    }
+
+    //Bucket i counts prices in [bounds[i-1], bounds[i]); the last bucket is open-ended
+    public double[] getPriceBounds() {
+        return priceBounds.clone();
+    }
+
+    public synchronized long[] getPriceHistogram() {
+        return histogram.clone();
+    }
+
+    @Override
+    public synchronized void productAdded(Product product) {
+        include(product, product.getPrice(), product.getQuantity());
+    }
+
+    //A stock move's event is a copy, so its quantity is the one this move left and pairs with oldQuantity
+    @Override
+    public synchronized void productUpdated(Product product, double oldPrice, int oldQuantity) {
+        exclude(product.getProductId(), oldPrice, oldQuantity);
+        include(product, product.getPrice(), product.getQuantity());
+    }
+
+    @Override
+    public synchronized void productRemoved(Product product) {
+        exclude(product.getProductId(), product.getPrice(), product.getQuantity());
+    }
+
+    //Prices are money, so values are summed in whole cents and never drift
+    static long valueCents(double price, int quantity) {
+        return Math.round(price * 100) * quantity;
+    }
+
+    private int bucket(double price) {
+        int i = java.util.Arrays.binarySearch(priceBounds, price);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    private void include(Product p, double price, int quantity) {
+        long v = valueCents(price, quantity);
+        totalCents += v;
+        totalQuantity += quantity;
+        count++;
+        histogram[bucket(price)]++;
+        byValue.add(new ValueKey(v, p.getProductId(), p));
+        if (quantity <= lowStockThreshold) addLowStock(p.getProductId());
+    }
+
+    private void exclude(int id, double price, int quantity) {
+        long v = valueCents(price, quantity);
+        totalCents -= v;
+        totalQuantity -= quantity;
+        count--;
+        histogram[bucket(price)]--;
+        byValue.remove(new ValueKey(v, id, null));
+        if (quantity <= lowStockThreshold) removeLowStock(id);
+    }
+
+    private void addLowStock(int id) {
+        if (lowStockCount == lowStockIds.length) lowStockIds = java.util.Arrays.copyOf(lowStockIds, lowStockCount * 2);
+        lowStockSlots.put(id, lowStockCount);
+        lowStockIds[lowStockCount++] = id;
+    }
+
+    private void removeLowStock(int id) {
+        int slot = lowStockSlots.remove(id);
+        if (slot < 0) return;
+        int last = lowStockIds[--lowStockCount];
+        if (slot != lowStockCount) {
+            lowStockIds[slot] = last;
+            lowStockSlots.put(last, slot);
+        }
+    }
+}
+
+//Product Query (filters, sort and limit; run through QueryEngine)
+class ProductQuery {
+
+    enum SortKey { ID, NAME, PRICE, QUANTITY, EXPIRY }
+
+    final int idMin;
+    final int idMax;
+    final String name;
+    final boolean namePrefix;
+    final double priceMin;
+    final double priceMax;
+    final int quantityMin;
+    final int quantityMax;
+    final Boolean perishable;
+    final long expiryFrom;
+    final long expiryTo;
+    final SortKey sortKey;
+    final boolean descending;
+    final int limit;
+
+    private ProductQuery(Builder b) {
+        idMin = b.idMin;
+        idMax = b.idMax;
+        name = b.name;
+        namePrefix = b.namePrefix;
+        priceMin = b.priceMin;
+        priceMax = b.priceMax;
+        quantityMin = b.quantityMin;
+        quantityMax = b.quantityMax;
+        perishable = b.perishable;
+        expiryFrom = b.expiryFrom;
+        expiryTo = b.expiryTo;
+        sortKey = b.sortKey;
+        descending = b.descending;
+        limit = b.limit;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    //A built query never changes, so it can be planned, cached and run from any thread
+    static class Builder {
+        private int idMin = Integer.MIN_VALUE;
+        private int idMax = Integer.MAX_VALUE;
+        private String name;
+        private boolean namePrefix;
+        private double priceMin = Double.NEGATIVE_INFINITY;
+        private double priceMax = Double.POSITIVE_INFINITY;
+        private int quantityMin = Integer.MIN_VALUE;
+        private int quantityMax = Integer.MAX_VALUE;
+        private Boolean perishable;
+        private long expiryFrom = Long.MIN_VALUE;
+        private long expiryTo = Long.MAX_VALUE;
+        private SortKey sortKey;
+        private boolean descending;
+        private int limit = Integer.MAX_VALUE;
+
+        public Builder idEquals(int id) {
+            return idBetween(id, id);
+        }
+
+        public Builder idBetween(int lo, int hi) {
+            idMin = lo;
+            idMax = hi;
+            return this;
+        }
+
+        public Builder nameStartsWith(String prefix) {
+            name = ProductNameIndex.normalize(prefix);
+            namePrefix = true;
+            return this;
+        }
+
+        public Builder nameContains(String text) {
+            name = ProductNameIndex.normalize(text);
+            namePrefix = false;
+            return this;
+        }
+
+        public Builder priceBetween(double lo, double hi) {
+            priceMin = lo;
+            priceMax = hi;
+            return this;
+        }
+
+        public Builder quantityBetween(int lo, int hi) {
+            quantityMin = lo;
+            quantityMax = hi;
+            return this;
+        }
+
+        public Builder quantityBelow(int threshold) {
+            return quantityBetween(Integer.MIN_VALUE, threshold - 1);
+        }
+
+        public Builder perishable(boolean perishable) {
+            this.perishable = perishable;
+            return this;
+        }
+
+        //Both ends inclusive; only perishables with a parseable date can match
+        public Builder expiresBetween(java.time.LocalDate from, java.time.LocalDate to) {
+            expiryFrom = from.toEpochDay();
+            expiryTo = to.toEpochDay();
+            return this;
+        }
+
+        public Builder sortBy(SortKey key, boolean descending) {
+            this.sortKey = key;
+            this.descending = descending;
+            return this;
+        }
+
+        public Builder limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+
+        public ProductQuery build() {
+            return new ProductQuery(this);
+        }
+    }
+
+    boolean hasPriceFilter() {
+        return priceMin != Double.NEGATIVE_INFINITY || priceMax != Double.POSITIVE_INFINITY;
+    }
+
+    boolean hasQuantityFilter() {
+        return quantityMin != Integer.MIN_VALUE || quantityMax != Integer.MAX_VALUE;
+    }
+
+    boolean hasExpiryFilter() {
+        return expiryFrom != Long.MIN_VALUE || expiryTo != Long.MAX_VALUE;
+    }
+
+    //Every filter, whichever access path produced the candidate
+    boolean matches(Product p) {
+        int id = p.getProductId();
+        if (id < idMin || id > idMax) return false;
+        if (p.getPrice() < priceMin || p.getPrice() > priceMax) return false;
+        if (p.getQuantity() < quantityMin || p.getQuantity() > quantityMax) return false;
+        if (perishable != null && perishable != (p instanceof PerishableProduct)) return false;
+        if (hasExpiryFilter()) {
+            if (!(p instanceof PerishableProduct)) return false;
+            int day = ((PerishableProduct) p).getExpiryDay();
+            if (day == PerishableProduct.UNKNOWN_EXPIRY || day < expiryFrom || day > expiryTo) return false;
+        }
+        if (name != null) {
+            String n = ProductNameIndex.normalize(p.getProductName());
+            if (namePrefix ? !n.startsWith(name) : !n.contains(name)) return false;
+        }
+        return true;
+    }
+
+    java.util.Comparator<Product> comparator() {
+        java.util.Comparator<Product> c;
+        switch (sortKey) {
+            case ID: c = java.util.Comparator.comparingInt(Product::getProductId); break;
+            case NAME: c = java.util.Comparator.comparing(Product::getProductName); break;
+            case PRICE: c = java.util.Comparator.comparingDouble(Product::getPrice); break;
+            case QUANTITY: c = java.util.Comparator.comparingInt(Product::getQuantity); break;
+            default: c = java.util.Comparator.comparingInt(p -> p instanceof PerishableProduct ? ((PerishableProduct) p).getExpiryDay() : Integer.MAX_VALUE);
+        }
+        c = c.thenComparingInt(Product::getProductId);
+        return descending ? c.reversed() : c;
+    }
+}
+
+//Query Engine (picks the cheapest access path by estimated rows, then streams lazily)
+class QueryEngine {
+
+    enum Access { ID_LOOKUP, ID_RANGE, PRICE_INDEX, QUANTITY_INDEX, EXPIRY_INDEX, NAME_INDEX, SCAN }
+
+    //Relative per-row costs measured by the range and query benchmarks: a sequential storage read,
+    //a random probe into it, and a name match that is materialized and re-checked
+    private static final double SCAN_ROW_COST = 1.0;
+    private static final double PROBE_ROW_COST = 20.0;
+    private static final double NAME_ROW_COST = 32.0;
+    //Sorted results up to this limit are kept in a bounded heap instead of sorting every match
+    private static final int TOP_K_MAX = 10_000;
+
+    static class Plan {
+        final Access access;
+        final long estimatedRows;
+        final boolean sorted;
+        final double cost;
+
+        Plan(Access access, long estimatedRows, boolean sorted, double cost) {
+            this.access = access;
+            this.estimatedRows = estimatedRows;
+            this.sorted = sorted;
+            this.cost = cost;
+        }
+
+        @Override
+        public String toString() {
+            return access + " rows~" + estimatedRows + (sorted ? " ordered" : " +sort") + " cost=" + Math.round(cost);
+        }
+    }
+
+    private final InventoryManager manager;
+    private final ProductNameIndex names;
+    private final ProductRangeIndex ranges;
+    private final ExpiryIndex expiry;
+
+    public QueryEngine(InventoryManager manager) {
+        this(manager, null, null, null);
+    }
+
+    //Any index may be null; the scan is always available
+    public QueryEngine(InventoryManager manager, ProductNameIndex names, ProductRangeIndex ranges, ExpiryIndex expiry) {
+        this.manager = manager;
+        this.names = names;
+        this.ranges = ranges;
+        this.expiry = expiry;
+    }
+
+    public java.util.stream.Stream<Product> execute(ProductQuery q) throws InvalidInputException {
+        return execute(q, plan(q));
+    }
+
+    public <T> java.util.stream.Stream<T> execute(ProductQuery q, java.util.function.Function<Product, T> projection) throws InvalidInputException {
+        return execute(q).map(projection);
+    }
+
+    //Checked before planning, so a bad limit is refused here rather than by the stream once it is consumed
+    private static void checkLimit(ProductQuery q) throws InvalidInputException {
+        if (q.limit < 0)
+            throw new InvalidInputException("Query limit cannot be negative.");
+    }
+
+    public java.util.stream.Stream<Product> execute(ProductQuery q, Plan plan) throws InvalidInputException {
+        checkLimit(q);
+        java.util.stream.Stream<Product> rows = source(q, plan.access).filter(q::matches);
+        if (!plan.sorted && q.sortKey != null) {
+            if (q.limit <= TOP_K_MAX) return topK(rows, q.comparator(), q.limit);
+            rows = rows.sorted(q.comparator());
+        }
+        return q.limit == Integer.MAX_VALUE ? rows : rows.limit(q.limit);
+    }
+
+    //O(n log k): the heap's head is the worst row kept so far. Like every other path, nothing is read until the
+    //caller runs a terminal operation on the returned stream
+    private static java.util.stream.Stream<Product> topK(java.util.stream.Stream<Product> rows, java.util.Comparator<Product> order, int k) {
+        if (k <= 0) return java.util.stream.Stream.empty();
+        return java.util.stream.StreamSupport.stream(() -> {
+            java.util.PriorityQueue<Product> heap = new java.util.PriorityQueue<>(k, order.reversed());
+            rows.forEach(p -> {
+                if (heap.size() < k) heap.add(p);
+                else if (order.compare(p, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(p);
+                }
+            });
+            Product[] out = heap.toArray(new Product[0]);
+            java.util.Arrays.sort(out, order);
+            return java.util.Arrays.spliterator(out);
+        }, java.util.Spliterator.ORDERED | java.util.Spliterator.IMMUTABLE | java.util.Spliterator.SIZED | java.util.Spliterator.SUBSIZED, false);
+    }
+
+    public Plan plan(ProductQuery q) throws InvalidInputException {
+        checkLimit(q);
+        int count = manager.getCount();
+        java.util.ArrayList<Plan> candidates = new java.util.ArrayList<>();
+        long idSpan = (long) q.idMax - q.idMin + 1;
+        if (idSpan == 1) candidates.add(new Plan(Access.ID_LOOKUP, 1, true, 0));
+        else if (idSpan <= count) candidates.add(new Plan(Access.ID_RANGE, idSpan, q.sortKey == null || isAscending(q, ProductQuery.SortKey.ID), 0));
+        if (ranges != null && q.hasPriceFilter()) {
+            candidates.add(new Plan(Access.PRICE_INDEX, ranges.estimatePriceBetween(q.priceMin, q.priceMax), isAscending(q, ProductQuery.SortKey.PRICE), 0));
+        }
+        if (ranges != null && q.hasQuantityFilter()) {
+            candidates.add(new Plan(Access.QUANTITY_INDEX, ranges.estimateQuantityBetween(q.quantityMin, q.quantityMax), isAscending(q, ProductQuery.SortKey.QUANTITY), 0));
+        }
+        if (expiry != null && q.hasExpiryFilter()) {
+            long to = q.expiryTo == Long.MAX_VALUE ? Long.MAX_VALUE : q.expiryTo + 1;
+            candidates.add(new Plan(Access.EXPIRY_INDEX, expiry.estimateBetween(q.expiryFrom, to), isAscending(q, ProductQuery.SortKey.EXPIRY), 0));
+        }
+        if (names != null && q.name != null && !q.name.isEmpty()) {
+            candidates.add(new Plan(Access.NAME_INDEX, names.estimateMatches(q.name), q.sortKey == null, 0));
+        }
+        candidates.add(new Plan(Access.SCAN, count, q.sortKey == null, 0));
+
+        //The smallest candidate is the best guess at how many rows match
+        long matches = count;
+        for (Plan c : candidates) matches = Math.min(matches, c.estimatedRows);
+
+        Plan best = null;
+        for (Plan c : candidates) {
+            double perRow = c.access == Access.SCAN ? SCAN_ROW_COST : c.access == Access.NAME_INDEX ? NAME_ROW_COST : PROBE_ROW_COST;
+            double touched = c.estimatedRows;
+            //An ordered path stops once the limit is met, after reading about limit/selectivity rows
+            if (c.sorted && q.limit < matches) touched = c.estimatedRows * ((double) q.limit / Math.max(matches, 1));
+            double cost = touched * perRow;
+            if (!c.sorted) cost += matches * Math.log(Math.min(matches, q.limit) + 1.0) / Math.log(2);
+            Plan costed = new Plan(c.access, c.estimatedRows, c.sorted, cost);
+            if (best == null || costed.cost < best.cost) best = costed;
+        }
+        return best;
+    }
+
+    private static boolean isAscending(ProductQuery q, ProductQuery.SortKey key) {
+        return q.sortKey == null || (q.sortKey == key && !q.descending);
+    }
+
+    private java.util.stream.Stream<Product> source(ProductQuery q, Access access) {
+        switch (access) {
+            case ID_LOOKUP:
+                Product p = manager.findProductNull(q.idMin);
+                return p == null ? java.util.stream.Stream.empty() : java.util.stream.Stream.of(p);
+            case ID_RANGE:
+                return java.util.stream.IntStream.rangeClosed(q.idMin, q.idMax).mapToObj(manager::findProductNull).filter(java.util.Objects::nonNull);
+            case PRICE_INDEX:
+                return ranges.streamPriceBetween(q.priceMin, q.priceMax);
+            case QUANTITY_INDEX:
+                return ranges.streamQuantityBetween(q.quantityMin, q.quantityMax);
+            case EXPIRY_INDEX:
+                return expiry.streamBetween(q.expiryFrom, q.expiryTo == Long.MAX_VALUE ? Long.MAX_VALUE : q.expiryTo + 1);
+            case NAME_INDEX:
+                return q.namePrefix ? names.streamPrefix(q.name) : names.streamSubstring(q.name);
+            default:
+                return manager.stream();
+        }
+    }
+}
+
+//Sample Catalog (made-up but realistic product names, the same for a given ID on every run)
+class SampleCatalog {
+
+    static final String[] WORDS = {"organic", "whole", "milk", "bread", "apple", "banana", "green", "tea", "coffee",
+            "rice", "pasta", "tomato", "sauce", "cheddar", "cheese", "yogurt", "butter", "orange", "juice", "honey",
+            "oat", "almond", "chicken", "soup", "spinach", "frozen", "peas", "dark", "chocolate", "salted", "crackers"};
+
+    //Short names shared by many products, as in a catalog of a thousand items
+    static final String[] ITEM_NAMES = new String[1000];
+    static {
+        for (int i = 0; i < ITEM_NAMES.length; i++) ITEM_NAMES[i] = "Item " + i;
+    }
+
+    static String productName(int id) {
+        int h = ProductIdIndex.hash(id);
+        return WORDS[(h & 0x7fffffff) % WORDS.length] + " " + WORDS[((h >>> 8) & 0x7fffffff) % WORDS.length]
+                + " " + WORDS[((h >>> 16) & 0x7fffffff) % WORDS.length] + " " + (id % 1000);
+    }
+}
+
+//Benchmarks
+class InventoryBenchmark {
+
+    //Usage: InventoryBenchmark [storage|batch|listener|columnar|offheap|persist|journal|csv|parallel-csv|names|analytics|expiry|range|query|snapshot|cache|concurrent|all] [sizes...]
+    public static void main(String[] args) throws Exception {
+        String suite = "all";
+        int first = 0;
+        if (args.length > 0 && !Character.isDigit(args[0].charAt(0))) {
+            suite = args[0];
+            first = 1;
+        }
+        int[] sizes = args.length > first ? parseSizes(args, first) : new int[] {10_000, 1_000_000, 10_000_000};
+
+        if (suite.equals("storage") || suite.equals("all")) {
+            for (int n : sizes) {
+                benchIndex(n);
+                benchGrowth(n);
+                benchDelete(n, DeleteMode.SWAP_REMOVE);
+                benchDelete(n, DeleteMode.TOMBSTONE);
+            }
+        }
+        if (suite.equals("batch") || suite.equals("all")) {
+            for (int n : sizes) benchBatch(n);
+        }
+        if (suite.equals("listener") || suite.equals("all")) {
+            for (int n : sizes) benchListeners(n);
+        }
+        if (suite.equals("columnar") || suite.equals("all")) {
+            for (int n : sizes) benchColumnar(n);
+        }
+        if (suite.equals("offheap") || suite.equals("all")) {
+            for (int n : sizes) benchOffHeap(n);
+        }
+        if (suite.equals("persist") || suite.equals("all")) {
+            for (int n : sizes) benchMappedFile(n);
+        }
+        if (suite.equals("journal") || suite.equals("all")) {
+            benchJournalRecovery(sizes[0]);
+            for (int threads : new int[] {1, 4, 16, 64}) benchJournal(threads, 2_000);
+        }
+        if (suite.equals("csv") || suite.equals("all")) {
+            for (int n : sizes) benchCsv(n);
+        }
+        if (suite.equals("parallel-csv") || suite.equals("all")) {
+            for (int n : sizes) benchParallelCsv(n);
+        }
+        if (suite.equals("names") || suite.equals("all")) {
+            for (int n : sizes) benchNameIndex(n);
+        }
+        if (suite.equals("analytics") || suite.equals("all")) {
+            for (int n : sizes) benchAnalytics(n);
+        }
+        if (suite.equals("expiry") || suite.equals("all")) {
+            for (int n : sizes) benchExpiry(n);
+        }
+        if (suite.equals("range") || suite.equals("all")) {
+            for (int n : sizes) benchRangeIndex(n);
+        }
+        if (suite.equals("query") || suite.equals("all")) {
+            for (int n : sizes) benchQuery(n);
+        }
+        if (suite.equals("snapshot") || suite.equals("all")) {
+            for (int n : sizes) benchSnapshot(n);
+        }
+        if (suite.equals("cache") || suite.equals("all")) {
+            for (int n : sizes) benchCache(n);
+            benchMappedBackend(sizes[0]);
+        }
+        if (suite.equals("concurrent") || suite.equals("all")) {
+            for (int threads : new int[] {1, 4, 16, 64}) stressConcurrent(threads, 20_000);
+            for (int threads : new int[] {1, 4, 16, 64}) stressReserve(threads, 1_000_000);
+            for (int threads : new int[] {1, 4, 16, 64}) benchConcurrent(threads, 1_000_000, 2_000);
+        }
+    }
+
+    private static int[] parseSizes(String[] args, int first) {
+        int[] sizes = new int[args.length - first];
+        for (int i = first; i < args.length; i++) sizes[i - first] = Integer.parseInt(args[i].replace("_", ""));
+        return sizes;
+    }
+
+    //Every thread races to add and then delete the same IDs; each ID must succeed exactly once per phase
+    static void stressConcurrent(int threads, int ids) throws Exception {
+        ConcurrentInventoryManager manager = new ConcurrentInventoryManager(16, 0, InventoryManager.UNLIMITED);
+        java.util.concurrent.atomic.AtomicInteger added = new java.util.concurrent.atomic.AtomicInteger();
+        java.util.concurrent.atomic.AtomicInteger deleted = new java.util.concurrent.atomic.AtomicInteger();
+        runThreads(threads, t -> {
+            for (int id = 0; id < ids; id++) {
+                try {
+                    manager.addProduct(new Product(id, "Item", 1.0, 1));
+                    added.incrementAndGet();
+                } catch (DuplicateProductException expected) {
+                }
+            }
+            for (int id = 0; id < ids; id++) {
+                if (manager.findProductNull(id) == null)
+                    throw new IllegalStateException("Lost product " + id);
+            }
+        });
+        runThreads(threads, t -> {
+            for (int id = 0; id < ids; id++) {
+                try {
+                    manager.deleteProductById(id);
+                    deleted.incrementAndGet();
+                } catch (ProductNotFoundException expected) {
+                }
+            }
+        });
+        boolean ok = added.get() == ids && deleted.get() == ids && manager.getCount() == 0;
+        System.out.printf("stress   threads=%-3d added=%d deleted=%d remaining=%d %s%n",
+                threads, added.get(), deleted.get(), manager.getCount(), ok ? "OK" : "FAILED");
+        if (!ok) throw new IllegalStateException("Concurrent stress check failed");
+    }
+
+    //Threads check out one hot product until it sells out; stock must never be oversold or lost
+    static void stressReserve(int threads, int stock) throws Exception {
+        ConcurrentInventoryManager manager = new ConcurrentInventoryManager();
+        manager.addProduct(new Product(1, "Hot Item", 1.0, stock));
+        java.util.concurrent.atomic.AtomicLong sold = new java.util.concurrent.atomic.AtomicLong();
+        long start = System.nanoTime();
+        runThreads(threads, t -> {
+            long mine = 0;
+            while (manager.reserve(1, 1)) mine++;
+            sold.addAndGet(mine);
+        });
+        long nanos = System.nanoTime() - start;
+        boolean ok = sold.get() == stock && manager.searchProductById(1).getQuantity() == 0;
+        System.out.printf("reserve  threads=%-3d sold=%d left=%d %10.0f reserves/s %s%n", threads, sold.get(),
+                manager.searchProductById(1).getQuantity(), stock / (nanos / 1e9), ok ? "OK" : "FAILED");
+        if (!ok) throw new IllegalStateException("Reserve stress check failed");
+    }
+
+    //90% lookups, 5% updates, 5% add+delete pairs on a preloaded catalog
+    static void benchConcurrent(int threads, int catalog, int opsPerThreadThousands) throws Exception {
+        ConcurrentInventoryManager manager = new ConcurrentInventoryManager(64, catalog, InventoryManager.UNLIMITED);
+        for (int i = 0; i < catalog; i++) manager.addProduct(new Product(i, "Item", 1.0, 1));
+        int ops = opsPerThreadThousands * 1000;
+        long start = System.nanoTime();
+        runThreads(threads, t -> {
+            java.util.concurrent.ThreadLocalRandom r = java.util.concurrent.ThreadLocalRandom.current();
+            int scratchId = catalog + t;
+            for (int i = 0; i < ops; i++) {
+                int roll = r.nextInt(100);
+                int id = r.nextInt(catalog);
+                if (roll < 90) {
+                    manager.findProductNull(id);
+                } else if (roll < 95) {
+                    manager.updateProductById(id, null, roll);
+                } else {
+                    manager.addProduct(new Product(scratchId, "Scratch", 1.0, 1));
+                    manager.deleteProductById(scratchId);
+                }
+            }
+        });
+        long nanos = System.nanoTime() - start;
+        System.out.printf("threads  n=%-10d threads=%-3d %10.0f ops/s%n", catalog, threads, (double) ops * threads / (nanos / 1e9));
+    }
+
+    interface ThreadBody {
+        void run(int thread) throws Exception;
+    }
+
+    static void runThreads(int threads, ThreadBody body) throws Exception {
+        java.util.concurrent.CountDownLatch start = new java.util.concurrent.CountDownLatch(1);
+        java.util.List<Thread> workers = new java.util.ArrayList<>();
+        java.util.concurrent.atomic.AtomicReference<Throwable> failure = new java.util.concurrent.atomic.AtomicReference<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            Thread w = new Thread(() -> {
+                try {
+                    start.await();
+                    body.run(thread);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            w.start();
+            workers.add(w);
+        }
+        start.countDown();
+        for (Thread w : workers) w.join();
+        if (failure.get() != null) throw new IllegalStateException("Worker failed", failure.get());
+    }
+
+    static void benchIndex(int n) throws Exception {
+        InventoryManager manager = new InventoryManager(n);
+        int[] ids = shuffledIds(n, 42);
+
+        long t0 = System.nanoTime();
+        for (int id : ids) manager.addProduct(new Product(id, "Item", 1.0, 1));
+        long t1 = System.nanoTime();
+        long hits = 0;
+        for (int id : ids) if (manager.findProductNull(id) != null) hits++;
+        long t2 = System.nanoTime();
+        for (int i = n - 1; i >= 0; i--) manager.deleteProductById(ids[i]);
+        long t3 = System.nanoTime();
+
+        report("index", n, "add", t1 - t0);
+        report("index", n, "search", t2 - t1);
+        report("index", n, "delete", t3 - t2);
+        if (hits != n) System.out.println("  !! expected " + n + " hits, got " + hits);
+    }
+
+    static void benchGrowth(int n) throws Exception {
+        InventoryManager manager = new InventoryManager();
+        long t0 = System.nanoTime();
+        for (int i = 1; i <= n; i++) manager.addProduct(new Product(i, "Item", 1.0, 1));
+        long t1 = System.nanoTime();
+        report("growth", n, "add", t1 - t0);
+    }
+
+    static void benchDelete(int n, DeleteMode mode) throws Exception {
+        InventoryManager manager = new InventoryManager(n, InventoryManager.UNLIMITED, mode);
+        for (int i = 1; i <= n; i++) manager.addProduct(new Product(i, "Item", 1.0, 1));
+        int[] ids = shuffledIds(n, 7);
+        long worst = 0;
+        long t0 = System.nanoTime();
+        for (int id : ids) {
+            long s0 = System.nanoTime();
+            manager.deleteProductById(id);
+            worst = Math.max(worst, System.nanoTime() - s0);
+        }
+        long t1 = System.nanoTime();
+        report("delete", n, mode == DeleteMode.SWAP_REMOVE ? "swap" : "tomb", t1 - t0);
+        if (mode == DeleteMode.TOMBSTONE) {
+            System.out.printf("  compactions=%d moved=%d compaction-time=%.1f ms slowest-delete=%.1f us%n",
+                    manager.getCompactionCount(), manager.getCompactedSlots(), manager.getCompactionNanos() / 1e6, worst / 1e3);
+        }
+    }
+
+    static void benchBatch(int n) throws Exception {
+        int[] ids = shuffledIds(n, 11);
+        java.util.List<Product> rows = new java.util.ArrayList<>(n);
+        java.util.List<ProductUpdate> updates = new java.util.ArrayList<>(n);
+        for (int id : ids) {
+            rows.add(new Product(id, "Item", 1.0, 1));
+            updates.add(new ProductUpdate(id, 2.0, 5));
+        }
+        InventoryManager single = new InventoryManager();
+        long t0 = System.nanoTime();
+        for (Product p : rows) single.addProduct(p);
+        long t1 = System.nanoTime();
+        for (ProductUpdate u : updates) single.updateProductById(u.getProductId(), u.getNewPrice(), u.getNewQty());
+        long t2 = System.nanoTime();
+        for (int id : ids) single.deleteProductById(id);
+        long t3 = System.nanoTime();
+
+        InventoryManager batched = new InventoryManager();
+        long b0 = System.nanoTime();
+        boolean ok = batched.addAll(rows).isApplied();
+        long b1 = System.nanoTime();
+        ok &= batched.updateAll(updates).isApplied();
+        long b2 = System.nanoTime();
+        ok &= batched.deleteAll(ids).isApplied();
+        long b3 = System.nanoTime();
+
+        report("single", n, "add", t1 - t0);
+        report("batch", n, "add", b1 - b0);
+        report("single", n, "update", t2 - t1);
+        report("batch", n, "update", b2 - b1);
+        report("single", n, "delete", t3 - t2);
+        report("batch", n, "delete", b3 - b2);
+        if (!ok) System.out.println("  !! a batch was rejected");
     }
 
-    public String getProductName(){
-        return productName;
+    //Bulk insert with no listener, a no-op listener, and the console listener writing to a discarded stream
+    static void benchListeners(int n) throws Exception {
+        java.io.PrintStream discard = new java.io.PrintStream(java.io.OutputStream.nullOutputStream());
+        InventoryListener[] variants = {null, new InventoryListener() {}, new ConsoleInventoryListener(discard)};
+        String[] names = {"none", "no-op", "console"};
+        for (int v = 0; v < variants.length; v++) {
+            InventoryManager manager = new InventoryManager(n);
+            if (variants[v] != null) manager.addInventoryListener(variants[v]);
+            long t0 = System.nanoTime();
+            for (int i = 1; i <= n; i++) manager.addProduct(new Product(i, "Item", 1.0, 1));
+            long t1 = System.nanoTime();
+            report("listener", n, names[v], t1 - t0);
+        }
     }
-    public void setProductName(String productName){
-        this.productName = productName;
+
+    //Measured heap growth per product for both layouts, plus a full stock-value scan over each
+    static void benchColumnar(int n) throws Exception {
+
+        long before = usedHeap();
+        InventoryManager objects = new InventoryManager(n);
+        for (int i = 1; i <= n; i++) objects.addProduct(sampleProduct(i));
+        long objectBytes = usedHeap() - before;
+        long t0 = System.nanoTime();
+        double[] objectValue = {0};
+        objects.forEach(p -> objectValue[0] += p.getPrice() * p.getQuantity());
+        long t1 = System.nanoTime();
+        objects = null;
+
+        before = usedHeap();
+        ColumnarInventoryManager columns = new ColumnarInventoryManager(n);
+        for (int i = 1; i <= n; i++) columns.addProduct(sampleProduct(i));
+        long columnBytes = usedHeap() - before;
+        long t2 = System.nanoTime();
+        double columnValue = columns.totalStockValue();
+        long t3 = System.nanoTime();
+
+        System.out.printf("columnar n=%-10d objects=%6.1f B/product  columns=%6.1f B/product (self-reported %.1f)%n",
+                n, (double) objectBytes / n, (double) columnBytes / n, columns.bytesPerProduct());
+        report("objects", n, "scan", t1 - t0);
+        report("columns", n, "scan", t3 - t2);
+        if (Math.abs(objectValue[0] - columnValue) > 1e-6 * Math.abs(columnValue))
+            System.out.println("  !! stock values differ");
+
+        //Products 1..n use names by id % 1000; dropping every id whose name ends in 0-4 frees half of them
+        int dictionaryBefore = columns.getDictionarySize();
+        for (int i = 1; i <= n; i++) if (i % 1000 % 10 < 5) columns.deleteProductById(i);
+        System.out.printf("  dictionary entries %d -> %d after deleting %d products%n",
+                dictionaryBefore, columns.getDictionarySize(), n - columns.getCount());
+
+        benchContract("objects", new InventoryManager(n), n);
+        benchContract("columns", new ColumnarInventoryManager(n), n);
     }
 
-    public double getPrice(){
-        return price;
+    //The same adds, stock moves and deletes through the Inventory contract, checked against the events they fire
+    static void benchContract(String layout, Inventory inventory, int n) throws Exception {
+        long[] events = new long[3];
+        long[] quantity = {0};
+        inventory.addInventoryListener(new InventoryListener() {
+            @Override
+            public void productAdded(Product product) {
+                events[0]++;
+                quantity[0] += product.getQuantity();
+            }
+
+            @Override
+            public void productUpdated(Product product, double oldPrice, int oldQuantity) {
+                events[1]++;
+                quantity[0] += product.getQuantity() - oldQuantity;
+            }
+
+            @Override
+            public void productRemoved(Product product) {
+                events[2]++;
+                quantity[0] -= product.getQuantity();
+            }
+        });
+        long t0 = System.nanoTime();
+        for (int i = 1; i <= n; i++) inventory.addProduct(sampleProduct(i));
+        for (int i = 1; i <= n; i++) {
+            inventory.adjustQuantity(i, 3);
+            inventory.reserve(i, 2);
+        }
+        for (int i = 2; i <= n; i += 2) inventory.deleteProductById(i);
+        long t1 = System.nanoTime();
+        long[] stored = {0};
+        inventory.forEach(p -> stored[0] += p.getQuantity());
+        report(layout, n, "contract", t1 - t0);
+        System.out.printf("  events add=%d update=%d remove=%d, quantity from events matches store: %s%n",
+                events[0], events[1], events[2], quantity[0] == stored[0]);
     }
-    public void setPrice(double price){
-        this.price = price;
+
+    //Heap growth of the object layout against the off-heap layout, with a young-GC timing for each
+    static void benchOffHeap(int n) throws Exception {
+
+        long before = usedHeap();
+        InventoryManager objects = new InventoryManager(n);
+        for (int i = 1; i <= n; i++) objects.addProduct(sampleProduct(i));
+        long objectBytes = usedHeap() - before;
+        long objectGc = timedGc();
+        java.lang.ref.Reference.reachabilityFence(objects);
+        objects = null;
+
+        before = usedHeap();
+        OffHeapInventoryManager offHeap = new OffHeapInventoryManager(n);
+        long t0 = System.nanoTime();
+        for (int i = 1; i <= n; i++) offHeap.addProduct(sampleProduct(i));
+        long t1 = System.nanoTime();
+        long offHeapHeapBytes = usedHeap() - before;
+        long offHeapGc = timedGc();
+        for (int i = 1; i <= n; i++) offHeap.findProductNull(i);
+        long t2 = System.nanoTime();
+
+        System.out.printf("offheap  n=%-10d heap: objects=%6.1f B/product  off-heap mode=%6.1f B/product  (+%.1f B/product direct)%n",
+                n, (double) objectBytes / n, (double) offHeapHeapBytes / n, (double) offHeap.offHeapBytes() / n);
+        System.out.printf("  full GC with catalog live: objects=%.1f ms  off-heap=%.1f ms%n", objectGc / 1e6, offHeapGc / 1e6);
+        report("offheap", n, "add", t1 - t0);
+        report("offheap", n, "search", t2 - t1);
+
+        benchContract("offheap", new OffHeapInventoryManager(n), n);
+        OffHeapInventoryManager limited = new OffHeapInventoryManager(2, 2);
+        limited.addProduct(new PerishableProduct(1, "Bread", 2.5, 3, "best before Friday"));
+        limited.addProduct(new Product(2, "Jam", 4.0, 1));
+        boolean full = false;
+        try {
+            limited.addProduct(new Product(3, "Tea", 3.0, 1));
+        } catch (InventoryFullException e) {
+            full = true;
+        }
+        System.out.printf("  free-form expiry kept: %s, capacity limit enforced: %s%n",
+                ((PerishableProduct) limited.findProductNull(1)).getExpiryDate().equals("best before Friday"), full);
     }
 
-    public int getQuantity(){
-        return quantity;
+    //Write a catalog through the listener, reopen it cleanly, then tear a record and reopen as after a crash
+    static void benchMappedFile(int n) throws Exception {
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("inventory", ".dat");
+        try {
+            MappedInventoryFile store = new MappedInventoryFile(file);
+            InventoryManager manager = new InventoryManager(n);
+            manager.addInventoryListener(store);
+            long t0 = System.nanoTime();
+            for (int i = 1; i <= n; i++) manager.addProduct(sampleProduct(i));
+            long t1 = System.nanoTime();
+            manager.updateProductById(1, 123.45, null);
+            store.close();
+
+            long t2 = System.nanoTime();
+            store = new MappedInventoryFile(file);
+            long t3 = System.nanoTime();
+            InventoryManager reloaded = new InventoryManager(n);
+            store.loadInto(reloaded);
+            long t4 = System.nanoTime();
+            report("persist", n, "write", t1 - t0);
+            report("persist", n, "open", t3 - t2);
+            report("persist", n, "load", t4 - t3);
+
+            //A cached manager over the file works off the IDs the open indexed, with no load step
+            CachedInventoryManager mapped = new CachedInventoryManager(store);
+            long t5 = System.nanoTime();
+            long[] quantity = {0};
+            for (int i = 1; i <= n; i++) quantity[0] += mapped.findProductNull(i).getQuantity();
+            report("persist", n, "lazy-get", System.nanoTime() - t5);
+            System.out.println("  " + mapped.getCache());
+            long[] loaded = {0};
+            reloaded.forEach(p -> loaded[0] += p.getQuantity());
+            System.out.println("  lazy reads match the loaded manager: " + (quantity[0] == loaded[0]));
+
+            //Simulate a crash halfway through an update: corrupt the copy being written and skip close()
+            store.put(new Product(1, "Torn", 999.0, 1));
+            try (FileChannel raw = FileChannel.open(file, java.nio.file.StandardOpenOption.WRITE)) {
+                raw.write(java.nio.ByteBuffer.wrap(new byte[] {1, 2, 3, 4}), 4096 + 40);
+                raw.write(java.nio.ByteBuffer.wrap(new byte[] {0, 0, 0, 0}), 12);
+            }
+            store = new MappedInventoryFile(file);
+            Product survivor = store.get(1);
+            boolean ok = reloaded.getCount() == n && survivor != null && survivor.getPrice() == 123.45
+                    && store.getDiscardedCopies() == 1;
+            System.out.println("  torn write " + (ok ? "rolled back to last intact copy OK" : "NOT recovered"));
+            store.close();
+
+            java.nio.file.Files.delete(file);
+            store = new MappedInventoryFile(file);
+            benchContract("mapped", new CachedInventoryManager(store), n);
+            store.close();
+        } finally {
+            java.nio.file.Files.deleteIfExists(file);
+        }
     }
-    public void setQuantity(int quantity){
-        this.quantity = quantity;
+
+    //Many threads appending at once should share fsyncs
+    static void benchJournal(int threads, int recordsPerThread) throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("journal");
+        try (InventoryJournal journal = new InventoryJournal(dir)) {
+            long start = System.nanoTime();
+            runThreads(threads, t -> {
+                for (int i = 0; i < recordsPerThread; i++) journal.logPut(new Product(t * recordsPerThread + i, "Item", 1.0, i));
+            });
+            long nanos = System.nanoTime() - start;
+            long records = (long) threads * recordsPerThread;
+            System.out.printf("journal  threads=%-3d %8.0f records/s  records/fsync=%.1f%n", threads,
+                    records / (nanos / 1e9), (double) records / journal.getSyncCount());
+            System.out.println("  append latency " + journal.getAppendLatency());
+        } finally {
+            deleteTree(dir);
+        }
     }
 
-    public void displayProductInfo() {
-        System.out.println("Product ID: " + productId);
-        System.out.println("Name: " + productName);
-        System.out.println("Price: " + price);
-        System.out.println("Quantity: " + quantity);
+    //Log some changes, snapshot part way, then rebuild from snapshot plus log and compare
+    static void benchJournalRecovery(int n) throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("journal");
+        try {
+            InventoryManager manager = new InventoryManager(n);
+            try (InventoryJournal journal = new InventoryJournal(dir)) {
+                journal.attach(manager, Math.max(n / 2, 1));
+                java.util.ArrayList<Product> batch = new java.util.ArrayList<>();
+                for (int i = 1; i <= n; i++) batch.add(new Product(i, "Item " + i, 1.0, i));
+                manager.addAll(batch);
+                manager.updateProductById(1, 9.5, 3);
+                if (n > 1) manager.deleteProductById(2);
+            }
+            long t0 = System.nanoTime();
+            InventoryManager rebuilt = new InventoryManager(n);
+            int replayed;
+            try (InventoryJournal journal = new InventoryJournal(dir)) {
+                replayed = journal.recover(rebuilt);
+            }
+            long t1 = System.nanoTime();
+            boolean ok = rebuilt.getCount() == manager.getCount() && rebuilt.findProductNull(1).getPrice() == 9.5;
+            report("recover", n, "rebuild", t1 - t0);
+            System.out.println("  replayed " + replayed + " log records after snapshot, state " + (ok ? "matches OK" : "DIFFERS"));
+        } finally {
+            deleteTree(dir);
+        }
     }
-}
 
-//Perishable Product Class
-class PerishableProduct extends Product {
-    private String expiryDate;
+    //Export a catalog to CSV and binary, then stream both back in and report rows/s
+    static void benchCsv(int n) throws Exception {
+        InventoryManager source = new InventoryManager(n);
+        for (int i = 1; i <= n; i++) source.addProduct(sampleProduct(i));
+        java.nio.file.Path csv = java.nio.file.Files.createTempFile("products", ".csv");
+        java.nio.file.Path bin = java.nio.file.Files.createTempFile("products", ".bin");
+        try {
+            long t0 = System.nanoTime();
+            ProductCsv.exportCsv(source, csv);
+            long t1 = System.nanoTime();
+            InventoryManager fromCsv = new InventoryManager(n);
+            ProductCsv.importCsv(csv, fromCsv, 10_000);
+            long t2 = System.nanoTime();
+            ProductCsv.exportBinary(source, bin);
+            long t3 = System.nanoTime();
+            InventoryManager fromBin = new InventoryManager(n);
+            ProductCsv.importBinary(bin, fromBin, 10_000);
+            long t4 = System.nanoTime();
+
+            System.out.printf("csv      n=%-10d export %8.0f rows/s  import %8.0f rows/s  (%d MB)%n", n,
+                    n / ((t1 - t0) / 1e9), n / ((t2 - t1) / 1e9), java.nio.file.Files.size(csv) >> 20);
+            System.out.printf("binary   n=%-10d export %8.0f rows/s  import %8.0f rows/s  (%d MB)%n", n,
+                    n / ((t3 - t2) / 1e9), n / ((t4 - t3) / 1e9), java.nio.file.Files.size(bin) >> 20);
+            Product a = fromCsv.findProductNull(n);
+            Product b = fromBin.findProductNull(n);
+            boolean ok = fromCsv.getCount() == n && fromBin.getCount() == n && a.getPrice() == b.getPrice()
+                    && a.getProductName().equals(b.getProductName()) && (a instanceof PerishableProduct) == (n % 4 == 0);
+            if (!ok) System.out.println("  !! round trip mismatch");
+        } finally {
+            java.nio.file.Files.deleteIfExists(csv);
+            java.nio.file.Files.deleteIfExists(bin);
+        }
+    }
 
-    public PerishableProduct(int productId, String productName, double price, int quantity, String expiryDate) {
-        super(productId, productName, price, quantity);
-        this.expiryDate = expiryDate;
+    //Parallel import at 1, 2, 4 ... up to the core count, against the streaming single-threaded import
+    static void benchParallelCsv(int n) throws Exception {
+        InventoryManager source = new InventoryManager(n);
+        for (int i = 1; i <= n; i++) source.addProduct(sampleProduct(i));
+        java.nio.file.Path csv = java.nio.file.Files.createTempFile("products", ".csv");
+        try {
+            ProductCsv.exportCsv(source, csv);
+            source = null;
+            long t0 = System.nanoTime();
+            ProductCsv.importCsv(csv, new InventoryManager(n), 10_000);
+            System.out.printf("pcsv     n=%-10d streaming       %8.0f rows/s%n", n, n / ((System.nanoTime() - t0) / 1e9));
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int threads = 1; threads <= cores; threads <<= 1) {
+                java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(threads);
+                try {
+                    InventoryManager target = new InventoryManager(n);
+                    ParallelCsvImporter.Report r = ParallelCsvImporter.importCsv(csv, target, pool);
+                    System.out.printf("pcsv     n=%-10d threads=%-3d     %8.0f rows/s  %s%n", n, threads, n / (r.wallNanos / 1e9), r);
+                    if (target.getCount() != n) System.out.println("  !! imported " + target.getCount());
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        } finally {
+            java.nio.file.Files.deleteIfExists(csv);
+        }
     }
 
-    public String getExpiryDate(){
-        return expiryDate;
+    static void benchNameIndex(int n) throws Exception {
+        InventoryManager manager = new InventoryManager(n);
+        java.util.ArrayList<Product> rows = new java.util.ArrayList<>(n);
+        for (int i = 1; i <= n; i++) rows.add(new Product(i, SampleCatalog.productName(i), 1.0, 1));
+        manager.addAll(rows);
+        long t0 = System.nanoTime();
+        ProductNameIndex index = new ProductNameIndex(manager);
+        long t1 = System.nanoTime();
+        report("names", n, "build", t1 - t0);
+
+        String[] queries = {"or", "choc", "green tea", "ilk", "cheese 12", "zzz", "Salted Crackers"};
+        for (String q : queries) {
+            int runs = 200;
+            int hits = 0;
+            long start = System.nanoTime();
+            for (int r = 0; r < runs; r++) hits = index.search(q, 10).size();
+            long per = (System.nanoTime() - start) / runs;
+            System.out.printf("  query %-18s top-10 hits=%-2d %8.1f us%n", "\"" + q + "\"", hits, per / 1e3);
+        }
+
+        long t2 = System.nanoTime();
+        for (int i = 1; i <= 10_000 && i <= n; i++) manager.deleteProductById(i);
+        for (int i = 1; i <= 10_000 && i <= n; i++) manager.addProduct(new Product(i, SampleCatalog.productName(i + 7), 1.0, 1));
+        long t3 = System.nanoTime();
+        report("names", Math.min(n, 10_000) * 2, "maintain", t3 - t2);
     }
-    public void setExpiryDate(String expiryDate) {
-        this.expiryDate = expiryDate;
+
+    static void benchAnalytics(int n) throws Exception {
+        InventoryManager manager = new InventoryManager(n);
+        java.util.ArrayList<Product> rows = new java.util.ArrayList<>(n);
+        for (int i = 1; i <= n; i++) rows.add(sampleProduct(i));
+        manager.addAll(rows);
+        rows = null;
+
+        long[] scanCents = new long[1];
+        long t0 = System.nanoTime();
+        manager.forEach(p -> scanCents[0] += InventoryAnalytics.valueCents(p.getPrice(), p.getQuantity()));
+        long t1 = System.nanoTime();
+        report("analytic", n, "scan", t1 - t0);
+
+        InventoryAnalytics analytics = new InventoryAnalytics(manager);
+        long t2 = System.nanoTime();
+        report("analytic", n, "build", t2 - t1);
+
+        int updates = Math.min(n, 100_000);
+        java.util.Random r = new java.util.Random(3);
+        long t3 = System.nanoTime();
+        for (int i = 0; i < updates; i++) manager.updateProductById(r.nextInt(n) + 1, r.nextInt(10_000) / 100.0, r.nextInt(60));
+        long t4 = System.nanoTime();
+        report("analytic", updates, "update", t4 - t3);
+
+        int reads = 10_000;
+        double sink = 0;
+        long t5 = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            sink += analytics.getTotalStockValue() + analytics.getLowStockCount() + analytics.topByValue(10).size() + analytics.getPriceHistogram()[0];
+        }
+        long t6 = System.nanoTime();
+        report("analytic", reads, "dashbrd", t6 - t5);
+
+        InventoryAnalytics fresh = new InventoryAnalytics(manager);
+        boolean ok = fresh.getTotalStockValue() == analytics.getTotalStockValue()
+                && fresh.getLowStockCount() == analytics.getLowStockCount()
+                && java.util.Arrays.equals(fresh.getPriceHistogram(), analytics.getPriceHistogram())
+                && fresh.topByValue(10).equals(analytics.topByValue(10));
+        System.out.printf("  incremental matches rescan: %s (value=%.2f, low=%d, sink=%.0f)%n",
+                ok, analytics.getTotalStockValue(), analytics.getLowStockCount(), sink);
     }
 
-    public void displayProductInfo() {
-        super.displayProductInfo();
-        System.out.println("Expiry Date: " + expiryDate);
+    //Expiry dates spread over a year either side of today
+    static void benchExpiry(int n) throws Exception {
+        long today = java.time.LocalDate.now().toEpochDay();
+        InventoryManager manager = new InventoryManager(n);
+        java.util.ArrayList<Product> rows = new java.util.ArrayList<>(n);
+        for (int i = 1; i <= n; i++) {
+            String expiry = java.time.LocalDate.ofEpochDay(today - 365 + (i * 7919L) % 730).toString();
+            rows.add(new PerishableProduct(i, "Item-" + i, 1.0, 1, expiry));
+        }
+        manager.addAll(rows);
+        rows = null;
+
+        long t0 = System.nanoTime();
+        ExpiryIndex index = new ExpiryIndex(manager);
+        long t1 = System.nanoTime();
+        report("expiry", n, "build", t1 - t0);
+
+        int[] scanned = new int[1];
+        long t2 = System.nanoTime();
+        manager.forEach(p -> {
+            long day = java.time.LocalDate.parse(((PerishableProduct) p).getExpiryDate()).toEpochDay();
+            if (day >= today && day <= today + 7) scanned[0]++;
+        });
+        long t3 = System.nanoTime();
+        System.out.printf("  within 7 days: scan+parse %8.2f ms (%d hits)%n", (t3 - t2) / 1e6, scanned[0]);
+
+        int runs = 100;
+        int hits = 0;
+        long t4 = System.nanoTime();
+        for (int r = 0; r < runs; r++) hits = index.expiringWithin(7).size();
+        long t5 = System.nanoTime();
+        System.out.printf("  within 7 days: index     %8.2f ms (%d hits)%n", (t5 - t4) / 1e6 / runs, hits);
+
+        long t6 = System.nanoTime();
+        int expired = index.expired().size();
+        long t7 = System.nanoTime();
+        System.out.printf("  expired:       index     %8.2f ms (%d hits)%n", (t7 - t6) / 1e6, expired);
+
+        long t8 = System.nanoTime();
+        int swept = index.sweep(p -> { }, true);
+        long t9 = System.nanoTime();
+        long t10 = System.nanoTime();
+        int again = index.sweep(p -> { }, true);
+        long t11 = System.nanoTime();
+        System.out.printf("  sweep removed %d in %.2f ms, next sweep %d in %.3f ms, left=%d%n",
+                swept, (t9 - t8) / 1e6, again, (t11 - t10) / 1e6, manager.getCount());
     }
-}
 
-//Inventory Manager Class
-class InventoryManager{
+    static void benchRangeIndex(int n) throws Exception {
+        java.util.Random r = new java.util.Random(11);
+        InventoryManager manager = new InventoryManager(n);
+        java.util.ArrayList<Product> rows = new java.util.ArrayList<>(n);
+        for (int i = 1; i <= n; i++) rows.add(new Product(i, "Item-" + i, r.nextInt(100_000) / 100.0, r.nextInt(1_000)));
+        manager.addAll(rows);
+        rows = null;
+
+        long t0 = System.nanoTime();
+        ProductRangeIndex index = new ProductRangeIndex(manager);
+        long t1 = System.nanoTime();
+        report("range", n, "build", t1 - t0);
+
+        double[][] priceRanges = {{10.00, 10.50}, {100.0, 110.0}, {0.0, 100.0}};
+        for (double[] range : priceRanges) {
+            int[] scanHits = new int[1];
+            long s0 = System.nanoTime();
+            manager.forEach(p -> { if (p.getPrice() >= range[0] && p.getPrice() <= range[1]) scanHits[0]++; });
+            long s1 = System.nanoTime();
+            int[] hits = new int[1];
+            int runs = 20;
+            for (int i = 0; i < runs; i++) {
+                hits[0] = 0;
+                index.forEachPriceBetween(range[0], range[1], p -> { hits[0]++; return true; });
+            }
+            long s2 = System.nanoTime();
+            System.out.printf("  price %.2f..%.2f: scan %8.3f ms, index %8.3f ms (%d hits, %s)%n", range[0], range[1],
+                    (s1 - s0) / 1e6, (s2 - s1) / 1e6 / runs, hits[0], hits[0] == scanHits[0] ? "match" : "MISMATCH " + scanHits[0]);
+        }
+        for (int threshold : new int[] {1, 10, 100}) {
+            int[] scanHits = new int[1];
+            long s0 = System.nanoTime();
+            manager.forEach(p -> { if (p.getQuantity() < threshold) scanHits[0]++; });
+            long s1 = System.nanoTime();
+            int hits = index.quantityBelow(threshold).size();
+            long s2 = System.nanoTime();
+            System.out.printf("  quantity < %-4d: scan %8.3f ms, index %8.3f ms (%d hits, %s)%n", threshold,
+                    (s1 - s0) / 1e6, (s2 - s1) / 1e6, hits, hits == scanHits[0] ? "match" : "MISMATCH " + scanHits[0]);
+        }
 
-    private Product[] products;
-    private int count;
+        int updates = Math.min(n, 100_000);
+        long t2 = System.nanoTime();
+        for (int i = 0; i < updates; i++) manager.updateProductById(r.nextInt(n) + 1, r.nextInt(100_000) / 100.0, r.nextInt(1_000));
+        for (int i = 1; i <= updates / 10; i++) manager.deleteProductById(i);
+        long t3 = System.nanoTime();
+        report("range", updates + updates / 10, "maintain", t3 - t2);
+        System.out.printf("  after maintenance: indexed=%d live=%d low-qty=%d%n", index.size(), manager.getCount(), index.quantityBelow(10).size());
+    }
 
-    public InventoryManager(){
-        products = new Product[50];
-        count = 0;
+    //Each query runs through the planner and through a scan-only engine, and the answers must agree
+    static void benchQuery(int n) throws Exception {
+        java.util.Random r = new java.util.Random(5);
+        long today = java.time.LocalDate.now().toEpochDay();
+        InventoryManager manager = new InventoryManager(n);
+        java.util.ArrayList<Product> rows = new java.util.ArrayList<>(n);
+        for (int i = 1; i <= n; i++) {
+            double price = r.nextInt(100_000) / 100.0;
+            int qty = r.nextInt(1_000);
+            if (i % 4 == 0) rows.add(new PerishableProduct(i, SampleCatalog.productName(i), price, qty, java.time.LocalDate.ofEpochDay(today + r.nextInt(730) - 365).toString()));
+            else rows.add(new Product(i, SampleCatalog.productName(i), price, qty));
+        }
+        manager.addAll(rows);
+        rows = null;
+        long t0 = System.nanoTime();
+        QueryEngine planned = new QueryEngine(manager, new ProductNameIndex(manager), new ProductRangeIndex(manager), new ExpiryIndex(manager));
+        report("query", n, "indexes", System.nanoTime() - t0);
+        QueryEngine scanOnly = new QueryEngine(manager);
+
+        java.util.LinkedHashMap<String, java.util.function.Supplier<ProductQuery>> queries = new java.util.LinkedHashMap<>();
+        queries.put("id = 42", () -> ProductQuery.builder().idEquals(42).build());
+        queries.put("limit 20", () -> ProductQuery.builder().limit(20).build());
+        queries.put("price 10..10.5", () -> ProductQuery.builder().priceBetween(10.0, 10.5).build());
+        queries.put("price 0..500 qty<5 by price", () -> ProductQuery.builder().priceBetween(0, 500).quantityBelow(5).sortBy(ProductQuery.SortKey.PRICE, false).build());
+        queries.put("qty<1 perishable", () -> ProductQuery.builder().quantityBelow(1).perishable(true).build());
+        queries.put("expires in 7 days by expiry", () -> ProductQuery.builder().expiresBetween(java.time.LocalDate.ofEpochDay(today), java.time.LocalDate.ofEpochDay(today + 7))
+                .sortBy(ProductQuery.SortKey.EXPIRY, false).build());
+        queries.put("name ^choc qty<100", () -> ProductQuery.builder().nameStartsWith("choc").quantityBelow(100).build());
+        queries.put("top 10 by price desc", () -> ProductQuery.builder().sortBy(ProductQuery.SortKey.PRICE, true).limit(10).build());
+        queries.put("cheapest 20 > 900", () -> ProductQuery.builder().priceBetween(900, Double.MAX_VALUE).sortBy(ProductQuery.SortKey.PRICE, false).limit(20).build());
+
+        for (java.util.Map.Entry<String, java.util.function.Supplier<ProductQuery>> e : queries.entrySet()) {
+            ProductQuery q = e.getValue().get();
+            planned.execute(q).count();
+            scanOnly.execute(q).count();
+            long s0 = System.nanoTime();
+            java.util.List<Integer> fast = planned.execute(q, Product::getProductId).collect(java.util.stream.Collectors.toList());
+            long s1 = System.nanoTime();
+            java.util.List<Integer> slow = scanOnly.execute(q, Product::getProductId).collect(java.util.stream.Collectors.toList());
+            long s2 = System.nanoTime();
+            boolean same = q.sortKey == null && q.limit == Integer.MAX_VALUE
+                    ? new java.util.HashSet<>(fast).equals(new java.util.HashSet<>(slow))
+                    : fast.equals(slow);
+            System.out.printf("  %-28s %-36s %9.3f ms  scan %9.3f ms  rows=%-6d %s%n", e.getKey(), planned.plan(q),
+                    (s1 - s0) / 1e6, (s2 - s1) / 1e6, fast.size(), same ? "match" : "MISMATCH");
+        }
     }
 
-    public Product findProductNull(int id) {
-        for (int i = 0; i < count; i++) {
-            if (products[i].getProductId() == id) {
-                return products[i];
+    //A reader exports a snapshot while the writer updates, deletes and adds; the export must match the snapshot moment
+    static void benchSnapshot(int n) throws Exception {
+        InventoryManager manager = new InventoryManager(n);
+        java.util.ArrayList<Product> rows = new java.util.ArrayList<>(n);
+        for (int i = 1; i <= n; i++) rows.add(sampleProduct(i));
+        manager.addAll(rows);
+        rows = null;
+
+        int writes = Math.min(n, 200_000);
+        java.util.Random r = new java.util.Random(9);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < writes; i++) manager.updateProductById(r.nextInt(n) + 1, r.nextInt(10_000) / 100.0, r.nextInt(60));
+        report("snapshot", writes, "update", System.nanoTime() - t0);
+
+        int snapshots = 10_000;
+        InventorySnapshot snap = null;
+        long t1 = System.nanoTime();
+        for (int i = 0; i < snapshots; i++) snap = manager.snapshot();
+        report("snapshot", snapshots, "create", System.nanoTime() - t1);
+
+        long[] expected = {0};
+        snap.forEach(p -> expected[0] += InventoryAnalytics.valueCents(p.getPrice(), p.getQuantity()));
+        InventorySnapshot view = snap;
+        java.nio.file.Path csv = java.nio.file.Files.createTempFile("snapshot", ".csv");
+        try {
+            long[] exportNanos = {0};
+            Throwable[] failure = {null};
+            Thread reader = new Thread(() -> {
+                try {
+                    long s0 = System.nanoTime();
+                    ProductCsv.exportCsv(view, csv);
+                    exportNanos[0] = System.nanoTime() - s0;
+                } catch (Throwable ex) {
+                    failure[0] = ex;
+                }
+            });
+            reader.start();
+            long t2 = System.nanoTime();
+            for (int i = 0; i < writes; i++) {
+                int id = r.nextInt(n) + 1;
+                if (i % 20 == 0) {
+                    if (manager.findProductNull(id) != null) manager.deleteProductById(id);
+                    manager.addProduct(new Product(n + i + 1, "Late " + i, 1.0, 1));
+                } else if (manager.findProductNull(id) != null) {
+                    manager.updateProductById(id, r.nextInt(10_000) / 100.0, r.nextInt(60));
+                }
             }
+            report("snapshot", writes, "cow-wrt", System.nanoTime() - t2);
+            reader.join();
+            if (failure[0] != null) throw new IllegalStateException("Snapshot export failed", failure[0]);
+            report("snapshot", view.getCount(), "export", exportNanos[0]);
+
+            InventoryManager exported = new InventoryManager(n);
+            ProductCsv.importCsv(csv, exported, 10_000);
+            long[] actual = {0};
+            exported.forEach(p -> actual[0] += InventoryAnalytics.valueCents(p.getPrice(), p.getQuantity()));
+            long[] after = {0};
+            view.forEach(p -> after[0] += InventoryAnalytics.valueCents(p.getPrice(), p.getQuantity()));
+            boolean ok = exported.getCount() == view.getCount() && actual[0] == expected[0] && after[0] == expected[0]
+                    && view.findProductNull(n + 1) == null;
+            System.out.printf("  export under writes matches snapshot: %s (rows=%d, live=%d)%n", ok, exported.getCount(), manager.getCount());
+        } finally {
+            java.nio.file.Files.deleteIfExists(csv);
         }
-        return null;
     }
 
-    public void addProduct(Product product) throws DuplicateProductException, InventoryFullException {
+    //Stand-in for a remote or disk store: every call costs a fixed delay, and stored products come back as fresh copies
+    static class SlowBackend implements InventoryBackend {
+        final java.util.concurrent.ConcurrentHashMap<Integer, Product> data = new java.util.concurrent.ConcurrentHashMap<>();
+        final java.util.concurrent.atomic.AtomicLong loads = new java.util.concurrent.atomic.AtomicLong();
+        final long delayNanos;
 
-        if (findProductNull(product.getProductId()) != null) {
-            throw new DuplicateProductException("Product with ID " + product.getProductId() + " already exists.");
+        SlowBackend(long delayNanos) {
+            this.delayNanos = delayNanos;
         }
 
-        if (count >= products.length) {
-            throw new InventoryFullException("Inventory is full. Cannot add more products.");
+        @Override
+        public void forEachId(java.util.function.IntConsumer action) {
+            for (int id : data.keySet()) action.accept(id);
         }
 
-        products[count++] = product;
-        System.out.println("Product added successfully!");
-    }
+        @Override
+        public Product load(int id) {
+            java.util.concurrent.locks.LockSupport.parkNanos(delayNanos);
+            loads.incrementAndGet();
+            Product p = data.get(id);
+            return p == null ? null : p.copy();
+        }
 
-    public void viewAllProducts(){
-        for (int i = 0; i < count; i++){
-            System.out.println("---Product " + (i + 1) + "---");
-            products[i].displayProductInfo();
-            System.out.println();
+        @Override
+        public void store(Product p) {
+            java.util.concurrent.locks.LockSupport.parkNanos(delayNanos);
+            data.put(p.getProductId(), p.copy());
+        }
+
+        @Override
+        public void remove(int id) {
+            java.util.concurrent.locks.LockSupport.parkNanos(delayNanos);
+            data.remove(id);
+        }
+
+        @Override
+        public void close() {
         }
     }
 
-    public Product searchProductById(int id) throws ProductNotFoundException {
-        for (int i = 0; i < count; i++) {
-            if (products[i].getProductId() == id) {
-                return products[i];
+    //Skewed reads from 8 threads against a 200us backend, straight and through a cache holding a tenth of the catalog
+    static void benchCache(int n) throws Exception {
+        SlowBackend backend = new SlowBackend(200_000);
+        for (int i = 1; i <= n; i++) backend.data.put(i, sampleProduct(i));
+        long maxBytes = InventoryCache.weigh(sampleProduct(1)) * Math.max(n / 10, 1);
+        int threads = 8;
+
+        LatencyHistogram direct = new LatencyHistogram();
+        runThreads(threads, t -> {
+            java.util.Random r = new java.util.Random(t);
+            for (int i = 0; i < 500; i++) {
+                long s0 = System.nanoTime();
+                backend.load(skewedId(r, n));
+                direct.record(System.nanoTime() - s0);
+            }
+        });
+        System.out.printf("cache    n=%-10d direct %s%n", n, direct);
+
+        InventoryCache cache = new InventoryCache(backend, maxBytes, 50);
+        LatencyHistogram cached = new LatencyHistogram();
+        runThreads(threads, t -> {
+            java.util.Random r = new java.util.Random(t);
+            for (int i = 0; i < 20_000; i++) {
+                long s0 = System.nanoTime();
+                cache.get(skewedId(r, n));
+                cached.record(System.nanoTime() - s0);
             }
+        });
+        System.out.printf("cache    n=%-10d cached %s%n", n, cached);
+        System.out.printf("  %s (bound=%d)%n", cache, maxBytes);
+
+        //Every thread misses on the same cold ID at once; the backend must see one load
+        int cold = n;
+        long before = backend.loads.get();
+        runThreads(64, t -> cache.get(cold));
+        System.out.printf("  64 concurrent misses on one id -> %d backend load(s)%n", backend.loads.get() - before);
+
+        int writes = 10_000;
+        long w0 = System.nanoTime();
+        for (int i = 0; i < writes; i++) cache.put(new Product(i % 1000 + 1, "Updated " + i, i, i));
+        report("cache", writes, "wr-behind", System.nanoTime() - w0);
+        cache.close();
+        Product last = backend.data.get(1000);
+        boolean ok = cache.getPendingWriteCount() == 0 && last.getQuantity() == writes - 1 && last.getProductName().equals("Updated " + (writes - 1));
+        System.out.printf("  write-behind drained on close: %s (flushed=%d of %d puts)%n", ok, cache.getFlushedWriteCount(), writes);
+
+        //The same skewed reads through a manager whose only copy of the catalog is the backend
+        CachedInventoryManager inventory = new CachedInventoryManager(backend, maxBytes, 50, InventoryManager.UNLIMITED);
+        LatencyHistogram managed = new LatencyHistogram();
+        runThreads(threads, t -> {
+            java.util.Random r = new java.util.Random(t);
+            for (int i = 0; i < 20_000; i++) {
+                long s0 = System.nanoTime();
+                inventory.findProductNull(skewedId(r, n));
+                managed.record(System.nanoTime() - s0);
+            }
+        });
+        System.out.printf("cache    n=%-10d managed %s%n", n, managed);
+        int stock = inventory.searchProductById(1).getQuantity();
+        inventory.adjustQuantity(1, 5);
+        inventory.close();
+        System.out.printf("  %s; queued stock move reached the backend on close: %s%n",
+                inventory.getCache(), backend.data.get(1).getQuantity() == stock + 5);
+    }
+
+    //Most reads land on a small hot set, the rest trail off over the whole catalog
+    static int skewedId(java.util.Random r, int n) {
+        double x = r.nextDouble();
+        return (int) (n * x * x * x * x * x * x) + 1;
+    }
+
+    //The mapped file plugged in as the backend
+    static void benchMappedBackend(int n) throws Exception {
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("inventory", ".dat");
+        try {
+            MappedInventoryFile store = new MappedInventoryFile(file);
+            for (int i = 1; i <= n; i++) store.put(new Product(i, SampleCatalog.productName(i), i % 100 + 0.99, i % 50));
+            InventoryCache cache = new InventoryCache(store, 16L << 20, 50);
+            java.util.Random r = new java.util.Random(1);
+            long t0 = System.nanoTime();
+            int reads = 1_000_000;
+            for (int i = 0; i < reads; i++) cache.get(skewedId(r, n));
+            report("mapped", reads, "cached", System.nanoTime() - t0);
+            cache.put(new Product(1, "Renamed", 1.0, 1));
+            cache.close();
+            MappedInventoryFile reopened = new MappedInventoryFile(file);
+            System.out.printf("  %s; reopened file has the write: %s%n", cache, reopened.get(1).getProductName().equals("Renamed"));
+            reopened.close();
+        } finally {
+            java.nio.file.Files.deleteIfExists(file);
+        }
+    }
+
+    static void deleteTree(java.nio.file.Path dir) throws java.io.IOException {
+        try (java.util.stream.Stream<java.nio.file.Path> paths = java.nio.file.Files.walk(dir)) {
+            for (java.nio.file.Path p : (Iterable<java.nio.file.Path>) paths.sorted(java.util.Comparator.reverseOrder())::iterator)
+                java.nio.file.Files.delete(p);
         }
-        throw new ProductNotFoundException("Product with ID " + id + " not found.");
     }
 
+    static long timedGc() {
+        long t0 = System.nanoTime();
+        System.gc();
+        return System.nanoTime() - t0;
+    }
 
-    public void updateProductById(int id, Double newPrice, Integer newQty) throws ProductNotFoundException, InvalidInputException {
+    static Product sampleProduct(int id) {
+        String name = SampleCatalog.ITEM_NAMES[id % SampleCatalog.ITEM_NAMES.length];
+        if (id % 4 == 0) return new PerishableProduct(id, name, id % 100 + 0.99, id % 50, "2026-12-31");
+        return new Product(id, name, id % 100 + 0.99, id % 50);
+    }
 
-        Product p = searchProductById(id);
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
 
-        if (newPrice != null && newPrice < 0)
-            throw new InvalidInputException("Price cannot be negative.");
+    static int[] shuffledIds(int n, long seed) {
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) ids[i] = i + 1;
+        java.util.Random r = new java.util.Random(seed);
+        for (int i = n - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            int t = ids[i]; ids[i] = ids[j]; ids[j] = t;
+        }
+        return ids;
+    }
 
-        if (newQty != null && newQty < 0)
-            throw new InvalidInputException("Quantity cannot be negative.");
+    static void report(String suite, int n, String op, long nanos) {
+        System.out.printf("%-8s n=%-10d %-8s total=%8.1f ms  per-op=%7.1f ns%n", suite, n, op, nanos / 1e6, (double) nanos / n);
+    }
+}
+
+//UI
+//Observable mirror of the manager for the views; positions maps ids to list indexes so each change is O(1)
+class InventoryViewModel implements InventoryListener {
+    private final ObservableList<Product> items = FXCollections.observableArrayList();
+    private final ObservableList<Product> readOnlyItems = FXCollections.unmodifiableObservableList(items);
+    private final ProductIdIndex positions;
+    //Deleted rows stay in the list until one queued flush takes them all out in a single change and renumbers the
+    //rows after the first of them once, so a burst of deletes costs one pass over the list rather than one per delete.
+    //Positions of the other rows stay exact meanwhile, since nothing has shifted yet.
+    private final java.util.Set<Product> removedRows = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<>());
+    private int firstRemoved = Integer.MAX_VALUE;
+    //Bumped on every add and update so a re-added id never matches an old version
+    private final ProductIdIndex versions;
+    private int nextVersion;
+
+    //Rows are never the manager's own instances, which the inventory thread changes in place: the initial rows
+    //come from a snapshot, which the manager copies on write, and later ones are copied as they arrive
+    public InventoryViewModel(InventoryManager manager) {
+        positions = new ProductIdIndex(manager.getCount());
+        versions = new ProductIdIndex(manager.getCount());
+        manager.snapshot().forEach(this::append);
+        manager.addInventoryListener(this);
+    }
 
-        if (newPrice != null) p.setPrice(newPrice);
-        if (newQty != null) p.setQuantity(newQty);
+    public ObservableList<Product> getItems() {
+        return readOnlyItems;
+    }
 
-        System.out.println("Product updated.");
+    public int indexOf(int productId) {
+        return positions.get(productId);
     }
 
+    public int getVersion(int productId) {
+        return versions.get(productId);
+    }
 
-    public void deleteProductById(int id) throws ProductNotFoundException {
+    @Override
+    public void productAdded(Product product) {
+        Product row = product.copy();
+        onFxThread(() -> append(row));
+    }
 
-        int idx = -1;
-        for (int i = 0; i < count; i++) {
-            if (products[i].getProductId() == id) {
-                idx = i;
-                break;
-            }
-        }
-        if (idx == -1)
-            throw new ProductNotFoundException("Product with ID " + id + " not found.");
+    @Override
+    public void productUpdated(Product product, double oldPrice, int oldQuantity) {
+        Product row = product.copy();
+        onFxThread(() -> {
+            int i = indexOf(row.getProductId());
+            if (i < 0) return;
+            versions.put(row.getProductId(), nextVersion++);
+            items.set(i, row);
+        });
+    }
+
+    @Override
+    public void productRemoved(Product product) {
+        onFxThread(() -> remove(product.getProductId()));
+    }
 
-        for (int i = idx; i < count - 1; i++) {
-            products[i] = products[i + 1];
+    private void append(Product product) {
+        positions.put(product.getProductId(), items.size());
+        versions.put(product.getProductId(), nextVersion++);
+        items.add(product);
+    }
+
+    //Keeps the remaining rows in insertion order
+    private void remove(int productId) {
+        int i = positions.remove(productId);
+        if (i < 0) return;
+        versions.remove(productId);
+        if (removedRows.isEmpty()) Platform.runLater(this::flushRemovals);
+        removedRows.add(items.get(i));
+        firstRemoved = Math.min(firstRemoved, i);
+    }
+
+    private void flushRemovals() {
+        items.removeAll(removedRows);
+        removedRows.clear();
+        for (int j = firstRemoved; j < items.size(); j++) positions.put(items.get(j).getProductId(), j);
+        firstRemoved = Integer.MAX_VALUE;
+    }
+
+    private static void onFxThread(Runnable r) {
+        if (Platform.isFxApplicationThread()) r.run();
+        else Platform.runLater(r);
+    }
+}
+
+//Pings the FX thread and dumps its stack when a ping waits longer than one frame
+class FxStallWatchdog {
+    private static final long PING_MILLIS = 5;
+
+    private final Thread fxThread;
+    private final long thresholdNanos;
+    private final LatencyHistogram pingLatency = new LatencyHistogram();
+    private final java.util.concurrent.atomic.AtomicInteger stalls = new java.util.concurrent.atomic.AtomicInteger();
+    private final java.util.concurrent.ScheduledExecutorService timer = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "fx-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile long pendingSince;
+    private boolean reported;
+
+    public FxStallWatchdog(Thread fxThread, long thresholdMillis) {
+        this.fxThread = fxThread;
+        this.thresholdNanos = thresholdMillis * 1_000_000L;
+    }
+
+    public void start() {
+        timer.scheduleAtFixedRate(this::tick, PING_MILLIS, PING_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+
+    public int getStallCount() {
+        return stalls.get();
+    }
+
+    //Only valid on the FX thread, which is the sole writer of the histogram
+    public LatencyHistogram getPingLatency() {
+        return pingLatency;
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        long since = pendingSince;
+        if (since == 0) {
+            pendingSince = now;
+            reported = false;
+            Platform.runLater(() -> {
+                pingLatency.record(System.nanoTime() - now);
+                pendingSince = 0;
+            });
+        } else if (!reported && now - since > thresholdNanos) {
+            reported = true;
+            stalls.incrementAndGet();
+            StringBuilder sb = new StringBuilder("FX thread blocked for more than ")
+                    .append(thresholdNanos / 1_000_000).append(" ms at:");
+            for (StackTraceElement frame : fxThread.getStackTrace()) sb.append("\n    at ").append(frame);
+            System.err.println(sb);
         }
-        products[--count] = null;
-        System.out.println("Product deleted successfully.");
     }
 }
 
-//UI
 class InventoryApp {
     public static void main(String[] args) {
         Application.launch(InventoryUI.class, args);
@@ -211,16 +6626,66 @@ class InventoryApp {
 
 public class InventoryUI extends Application {
 
+    private static final String INVENTORY_FILE = "inventory.dat";
+    //Log of changes the file may not have flushed yet; the file is flushed and the log cut back every so many changes
+    private static final String JOURNAL_DIR = "inventory-journal";
+    private static final int JOURNAL_CHECKPOINT_EVERY = 1000;
+    private static final int SEARCH_DEBOUNCE_MS = 150;
+    private static final int LIVE_SEARCH_LIMIT = 10;
+    private static final int PAGE_CACHE_SIZE = 64;
+    //-Dinventory.seedRows=N starts on a scratch in-memory catalog of N generated products
+    private static final int SEED_ROWS = Integer.getInteger("inventory.seedRows", 0);
+    //-Dinventory.frameStats=true prints frame-time percentiles every few seconds
+    private static final boolean FRAME_STATS = Boolean.getBoolean("inventory.frameStats");
+    //-Dinventory.scrollFrames=N jumps the table view through the whole catalog over N frames, prints the frame times and exits
+    private static final int SCROLL_FRAMES = Integer.getInteger("inventory.scrollFrames", 0);
+    //-Dinventory.failOnStall=true exits with status 1 if any stall was seen, which makes a scroll run a pass/fail check
+    private static final boolean FAIL_ON_STALL = Boolean.getBoolean("inventory.failOnStall");
+    //-Dinventory.stallMillis=N reports every FX thread stall longer than N ms with the stack that caused it;
+    //off unless set, or one frame when failOnStall is
+    private static final int STALL_MILLIS = Integer.getInteger("inventory.stallMillis", FAIL_ON_STALL ? 16 : 0);
+
     private InventoryManager manager = new InventoryManager();
-    private ArrayList<Product> uiProducts = new ArrayList<>();
+    private InventoryViewModel inventoryModel;
+    private ObservableList<Product> uiProducts; //read-only view of inventoryModel, not a copy
+    private MappedInventoryFile inventoryFile;
+    private InventoryJournal journal;
+    private ProductNameIndex nameIndex;
+
+    //Every manager operation after startup runs on this one thread, so the manager, name index and file need no locks
+    private final java.util.concurrent.ExecutorService inventoryExecutor = java.util.concurrent.Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "inventory-worker");
+        t.setDaemon(true);
+        return t;
+    });
+    private java.util.concurrent.Future<?> pendingSearch;
+    private final java.util.concurrent.atomic.AtomicLong searchGeneration = new java.util.concurrent.atomic.AtomicLong();
+    private FxStallWatchdog watchdog;
 
     private BorderPane root;
     private StackPane centerStack;
 
     private Pagination viewPagination;
+    private StackPane currentPage;
+    //Rendered product cards in access order; an entry is reused only while its version is current
+    private final java.util.LinkedHashMap<Integer, CachedCard> pageCache = new java.util.LinkedHashMap<Integer, CachedCard>(PAGE_CACHE_SIZE * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(java.util.Map.Entry<Integer, CachedCard> eldest) {
+            return size() > PAGE_CACHE_SIZE;
+        }
+    };
+
+    private static final class CachedCard {
+        final int version;
+        final VBox card;
+
+        CachedCard(int version, VBox card) {
+            this.version = version;
+            this.card = card;
+        }
+    }
     private ToggleGroup viewToggleGroup;
-    private ScrollPane tableScrollPane;
-    private VBox tableContainer = new VBox();
+    private TableView<Product> productTable;
 
     public InventoryUI() {
         super();
@@ -248,6 +6713,12 @@ public class InventoryUI extends Application {
         centerStack.setPrefSize(800, 500);
         root.setCenter(centerStack);
 
+        if (SEED_ROWS > 0) seedProducts(SEED_ROWS);
+        else openInventoryFile();
+        nameIndex = new ProductNameIndex(manager);
+        inventoryModel = new InventoryViewModel(manager);
+        uiProducts = inventoryModel.getItems();
+
         Pane homePane = buildHomePane();
         Pane addPane = buildAddPane();
         Pane viewPane = buildViewPane();
@@ -265,6 +6736,173 @@ public class InventoryUI extends Application {
         }
         primaryStage.setScene(scene);
         primaryStage.show();
+        if (FRAME_STATS) startFrameStats();
+        if (SCROLL_FRAMES > 0) startScrollRun(viewPane);
+        if (STALL_MILLIS > 0) {
+            watchdog = new FxStallWatchdog(Thread.currentThread(), STALL_MILLIS);
+            watchdog.start();
+        }
+    }
+
+    private void seedProducts(int n) {
+        ArrayList<Product> batch = new ArrayList<>(n);
+        for (int i = 1; i <= n; i++) {
+            String name = SampleCatalog.productName(i);
+            batch.add(i % 4 == 0 ? new PerishableProduct(i, name, i % 100 + 0.99, i % 50, "2026-12-31") : new Product(i, name, i % 100 + 0.99, i % 50));
+        }
+        try {
+            manager.addAll(batch);
+        } catch (Exception ex) {
+            showExceptionDialog("Could not seed products: " + ex.getMessage());
+        }
+    }
+
+    //Every frame lands on rows no cell showed the frame before, which is the worst case for the table
+    private void startScrollRun(Pane viewPane) {
+        showPaneWithAnimation(viewPane);
+        viewToggleGroup.getToggles().get(1).setSelected(true);
+        new AnimationTimer() {
+            private long last;
+            private int frame;
+            private final LatencyHistogram frames = new LatencyHistogram();
+
+            @Override
+            public void handle(long now) {
+                if (last != 0) frames.record(now - last);
+                last = now;
+                int rows = uiProducts.size();
+                if (rows > 0) productTable.scrollTo((int) ((long) frame * rows / SCROLL_FRAMES));
+                if (++frame < SCROLL_FRAMES) return;
+                stop();
+                System.out.println("scroll rows=" + rows + " frames " + frames);
+                Platform.exit();
+            }
+        }.start();
+    }
+
+    //Logs the gap between pulses; anything well above 16.7 ms is a dropped frame
+    private void startFrameStats() {
+        new AnimationTimer() {
+            private long last;
+            private long windowStart;
+            private LatencyHistogram frames = new LatencyHistogram();
+
+            @Override
+            public void handle(long now) {
+                if (last != 0) frames.record(now - last);
+                else windowStart = now;
+                last = now;
+                if (now - windowStart >= 5_000_000_000L) {
+                    System.out.println("frames rows=" + uiProducts.size() + " " + frames);
+                    frames = new LatencyHistogram();
+                    windowStart = now;
+                }
+            }
+        }.start();
+    }
+
+    private void openInventoryFile() {
+        try {
+            inventoryFile = new MappedInventoryFile(java.nio.file.Paths.get(INVENTORY_FILE));
+            inventoryFile.loadInto(manager);
+            manager.addInventoryListener(inventoryFile);
+        } catch (java.io.IOException | java.io.UncheckedIOException ex) {
+            inventoryFile = null;
+            showExceptionDialog("Could not open " + INVENTORY_FILE + ", changes will not be saved: " + ex.getMessage());
+            return;
+        }
+        try {
+            journal = new InventoryJournal(java.nio.file.Paths.get(JOURNAL_DIR));
+            //Replayed changes reach the file through its listener
+            journal.recover(manager);
+            journal.attach(manager, JOURNAL_CHECKPOINT_EVERY, inventoryFile::flush);
+        } catch (java.io.IOException | java.io.UncheckedIOException | IllegalStateException ex) {
+            closeJournalQuietly();
+            showExceptionDialog("Could not replay " + JOURNAL_DIR + ", recent changes may be missing: " + ex.getMessage());
+        }
+    }
+
+    private void closeJournalQuietly() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (java.io.IOException ex) {
+            //Already reporting why the journal is unusable
+        }
+        journal = null;
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (watchdog != null) watchdog.stop();
+        //Let queued writes reach the file before it is closed
+        inventoryExecutor.shutdown();
+        inventoryExecutor.awaitTermination(5, java.util.concurrent.TimeUnit.SECONDS);
+        if (journal != null) {
+            //Nothing changes the manager any more, so the file can be flushed and the log cut back here
+            journal.snapshot(manager);
+            journal.close();
+        }
+        if (inventoryFile != null) inventoryFile.close();
+        if (FAIL_ON_STALL && watchdog != null && watchdog.getStallCount() > 0) {
+            System.err.println("FAILED: the FX thread stalled " + watchdog.getStallCount() + " time(s) for more than " + STALL_MILLIS + " ms");
+            System.exit(1);
+        }
+    }
+
+    //Spinner and Cancel button shown while a pane's operation is running
+    private HBox createBusyBox() {
+        ProgressIndicator progress = new ProgressIndicator();
+        progress.setPrefSize(24, 24);
+        Button cancel = new Button("Cancel");
+        HBox box = new HBox(10, progress, cancel);
+        box.setAlignment(Pos.CENTER);
+        box.setVisible(false);
+        box.setManaged(false);
+        return box;
+    }
+
+    //Runs work on the inventory thread; the trigger is disabled until the result or error is back on the FX thread.
+    //Cancel only works while the operation is still queued: once it has started it commits, so it is left to finish
+    //and report its real outcome rather than being interrupted halfway or having its result hidden
+    private <T> Task<T> runOperation(Button trigger, HBox busyBox, java.util.concurrent.Callable<T> work, java.util.function.Consumer<T> onSuccess) {
+        java.util.concurrent.atomic.AtomicBoolean claimed = new java.util.concurrent.atomic.AtomicBoolean();
+        Task<T> task = new Task<T>() {
+            @Override
+            protected T call() throws Exception {
+                if (!claimed.compareAndSet(false, true)) return null;
+                return work.call();
+            }
+        };
+        Button cancel = (Button) busyBox.getChildren().get(1);
+        Runnable done = () -> {
+            trigger.setDisable(false);
+            cancel.setDisable(false);
+            busyBox.setVisible(false);
+            busyBox.setManaged(false);
+        };
+        task.setOnSucceeded(e -> { done.run(); onSuccess.accept(task.getValue()); });
+        task.setOnFailed(e -> { done.run(); showOperationError(task.getException()); });
+        task.setOnCancelled(e -> done.run());
+        cancel.setOnAction(e -> {
+            if (claimed.compareAndSet(false, true)) task.cancel(false);
+            else cancel.setDisable(true);
+        });
+
+        trigger.setDisable(true);
+        busyBox.setVisible(true);
+        busyBox.setManaged(true);
+        inventoryExecutor.execute(task);
+        return task;
+    }
+
+    private void showOperationError(Throwable ex) {
+        if (ex instanceof ProductNotFoundException || ex instanceof DuplicateProductException
+                || ex instanceof InventoryFullException || ex instanceof InvalidInputException) {
+            showExceptionDialog(ex.getMessage());
+        } else {
+            showExceptionDialog("Error: " + ex.getMessage());
+        }
     }
 
     private void showPaneWithAnimation(Pane target) {
@@ -299,7 +6937,7 @@ public class InventoryUI extends Application {
         Button exitBtn = styledButton("Exit", "#95A5A6", 180, 60);
 
         addBtn.setOnAction(e -> showPaneWithAnimation(lookupPaneByName("add")));
-        viewBtn.setOnAction(e -> { if (viewPagination != null) refreshViewPagination(); showPaneWithAnimation(lookupPaneByName("view")); });
+        viewBtn.setOnAction(e -> showPaneWithAnimation(lookupPaneByName("view")));
         searchBtn.setOnAction(e -> showPaneWithAnimation(lookupPaneByName("search")));
         updateBtn.setOnAction(e -> showPaneWithAnimation(lookupPaneByName("update")));
         deleteBtn.setOnAction(e -> showPaneWithAnimation(lookupPaneByName("delete")));
@@ -343,6 +6981,7 @@ public class InventoryUI extends Application {
         perishable.selectedProperty().addListener((obs, oldV, newV) -> expiryField.setDisable(!newV));
 
         Button submit = styledButton("Add Product", "#FF6B6B", 160, 45);
+        HBox busy = createBusyBox();
         Label status = new Label();
 
         submit.setOnAction(e -> {
@@ -362,16 +7001,10 @@ public class InventoryUI extends Application {
                 } else {
                     p = new Product(id, name, price, qty);
                 }
-
-                try {
-                    manager.addProduct(p);
-                    uiProducts.add(p);
-                    refreshViewPagination();
+                runOperation(submit, busy, () -> { manager.addProduct(p); return null; }, done -> {
                     showStatus(status, "✓ Product added successfully!", Color.GREEN);
                     resetAddPane();
-                } catch (DuplicateProductException | InventoryFullException ex) {
-                    showExceptionDialog(ex.getMessage());
-                }
+                });
 
             } catch (NumberFormatException nfe) {
                 showExceptionDialog("Invalid number format.");
@@ -382,7 +7015,7 @@ public class InventoryUI extends Application {
             }
         });
 
-        formContainer.getChildren().addAll(idField, nameField, priceField, qtyField, perishable, expiryField, submit, status);
+        formContainer.getChildren().addAll(idField, nameField, priceField, qtyField, perishable, expiryField, submit, busy, status);
         mainContainer.getChildren().addAll(headerBox, formContainer);
         return wrapNamedPane(mainContainer, "add");
     }
@@ -441,39 +7074,31 @@ public class InventoryUI extends Application {
         contentArea.setMaxHeight(400);
 
 
-        viewPagination = new Pagination(1);
-        viewPagination.setPageFactory((index) -> createPageView(index));
+        viewPagination = new Pagination(Math.max(uiProducts.size(), 1));
+        viewPagination.setPageFactory(index -> {
+            currentPage = new StackPane(createPageView(index));
+            Platform.runLater(() -> prefetchCards(index));
+            return currentPage;
+        });
+        uiProducts.addListener((ListChangeListener<Product>) this::applyPageDelta);
         viewPagination.setMaxHeight(350);
 
 
-        tableContainer = new VBox();
-        tableContainer.setAlignment(Pos.TOP_CENTER);
-        tableContainer.setSpacing(2);
-        tableContainer.setPadding(new Insets(10));
-        tableContainer.setMinHeight(350);
-
-        tableScrollPane = new ScrollPane();
-        tableScrollPane.setFitToWidth(true);
-        tableScrollPane.setFitToHeight(true);
-        tableScrollPane.setMinHeight(350);
-        tableScrollPane.setPrefHeight(350);
-        tableScrollPane.setContent(tableContainer);
-        tableScrollPane.setVisible(false);
-        tableScrollPane.setStyle("-fx-background: transparent; -fx-border-color: transparent;");
+        productTable = buildProductTable();
+        productTable.setVisible(false);
 
 
-        contentArea.getChildren().addAll(viewPagination, tableScrollPane);
+        contentArea.getChildren().addAll(viewPagination, productTable);
 
         viewToggleGroup.selectedToggleProperty().addListener((obs, oldToggle, newToggle) -> {
             if (newToggle != null) {
                 String viewType = (String) newToggle.getUserData();
                 if ("page".equals(viewType)) {
                     viewPagination.setVisible(true);
-                    tableScrollPane.setVisible(false);
+                    productTable.setVisible(false);
                 } else {
                     viewPagination.setVisible(false);
-                    tableScrollPane.setVisible(true);
-                    refreshTableView();
+                    productTable.setVisible(true);
                 }
             }
         });
@@ -489,7 +7114,23 @@ public class InventoryUI extends Application {
             empty.getChildren().add(lbl); return empty;
         }
         if (index < 0 || index >= uiProducts.size()) return new VBox();
+        VBox page = productCard(index);
+
+        HBox navHint = new HBox(10); navHint.setAlignment(Pos.CENTER);
+        Label hint = new Label("Product " + (index+1) + " of " + uiProducts.size() + " - Use dots below to navigate"); hint.setTextFill(Color.GRAY);
+        navHint.getChildren().add(hint);
+
+        VBox container = new VBox(20, page, navHint); container.setAlignment(Pos.CENTER);
+        return container;
+    }
+
+    //The card depends only on the product, so it survives paging and other products' changes
+    private VBox productCard(int index) {
         Product p = uiProducts.get(index);
+        int version = inventoryModel.getVersion(p.getProductId());
+        CachedCard cached = pageCache.get(p.getProductId());
+        if (cached != null && cached.version == version) return cached.card;
+
         VBox page = new VBox(12); page.setAlignment(Pos.CENTER); page.setPadding(new Insets(25));
         page.setStyle("-fx-background-color: #f8f9fa; -fx-background-radius: 10; -fx-border-radius: 10;");
 
@@ -503,80 +7144,65 @@ public class InventoryUI extends Application {
             Text exp = new Text("Expiry Date: " + ((PerishableProduct) p).getExpiryDate()); exp.setFont(Font.font(16));
             page.getChildren().add(exp);
         }
+        pageCache.put(p.getProductId(), new CachedCard(version, page));
+        return page;
+    }
 
-        HBox navHint = new HBox(10); navHint.setAlignment(Pos.CENTER);
-        Label hint = new Label("Product " + (index+1) + " of " + uiProducts.size() + " - Use dots below to navigate"); hint.setTextFill(Color.GRAY);
-        navHint.getChildren().add(hint);
-
-        VBox container = new VBox(20, page, navHint); container.setAlignment(Pos.CENTER);
-        return container;
+    //Renders the neighbours after the current page is on screen so the next click is a cache hit
+    private void prefetchCards(int index) {
+        if (index + 1 < uiProducts.size()) productCard(index + 1);
+        if (index - 1 >= 0 && index - 1 < uiProducts.size()) productCard(index - 1);
     }
-    private HBox createTableRow(String id, String name, String price, String quantity, String expiry, boolean isHeader) {
-        HBox row = new HBox(10);
-        row.setPadding(new Insets(10));
-        row.setAlignment(Pos.CENTER);
-        row.setPrefHeight(40);
-
-        row.getChildren().addAll(
-                createTableLabel(id, 80, isHeader),
-                createTableLabel(name, 200, isHeader),
-                createTableLabel(price, 100, isHeader),
-                createTableLabel(quantity, 80, isHeader),
-                createTableLabel(expiry, 120, isHeader)
-        );
-        return row;
+    //Only the visible rows get cells, and cells are reused while scrolling
+    private TableView<Product> buildProductTable() {
+        TableView<Product> table = new TableView<>(uiProducts);
+        table.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+        table.setFixedCellSize(32);
+        table.setMinHeight(350);
+        table.setPrefHeight(350);
+        Label emptyLabel = new Label("No products yet. Use Add Product to create some.");
+        emptyLabel.setTextFill(Color.GRAY);
+        table.setPlaceholder(emptyLabel);
+
+        TableColumn<Product, Integer> idCol = new TableColumn<>("ID");
+        idCol.setCellValueFactory(c -> new ReadOnlyObjectWrapper<>(c.getValue().getProductId()));
+        idCol.setPrefWidth(80);
+        TableColumn<Product, String> nameCol = new TableColumn<>("Name");
+        nameCol.setCellValueFactory(c -> new ReadOnlyObjectWrapper<>(c.getValue().getProductName()));
+        nameCol.setPrefWidth(200);
+        TableColumn<Product, String> priceCol = new TableColumn<>("Price");
+        priceCol.setCellValueFactory(c -> new ReadOnlyObjectWrapper<>("$" + String.format("%.2f", c.getValue().getPrice())));
+        priceCol.setPrefWidth(100);
+        TableColumn<Product, Integer> qtyCol = new TableColumn<>("Quantity");
+        qtyCol.setCellValueFactory(c -> new ReadOnlyObjectWrapper<>(c.getValue().getQuantity()));
+        qtyCol.setPrefWidth(80);
+        TableColumn<Product, String> expiryCol = new TableColumn<>("Expiry Date");
+        expiryCol.setCellValueFactory(c -> new ReadOnlyObjectWrapper<>(
+                c.getValue() instanceof PerishableProduct ? ((PerishableProduct) c.getValue()).getExpiryDate() : "N/A"));
+        expiryCol.setPrefWidth(120);
+
+        table.getColumns().add(idCol);
+        table.getColumns().add(nameCol);
+        table.getColumns().add(priceCol);
+        table.getColumns().add(qtyCol);
+        table.getColumns().add(expiryCol);
+        return table;
     }
 
-
-    private void refreshTableView() {
-        tableContainer.getChildren().clear();
-
-        if (uiProducts.size() == 0) {
-            Label emptyLabel = new Label("No products yet. Use Add Product to create some.");
-            emptyLabel.setTextFill(Color.GRAY);
-            tableContainer.getChildren().add(emptyLabel);
-            tableScrollPane.setContent(tableContainer);
-            return;
+    //Re-renders the shown page only when it is the one that changed, or when the page count moved
+    private void applyPageDelta(ListChangeListener.Change<? extends Product> c) {
+        int shown = viewPagination.getCurrentPageIndex();
+        boolean affected = false;
+        while (c.next()) {
+            if (!c.wasReplaced() || (shown >= c.getFrom() && shown < c.getTo())) affected = true;
+            for (Product gone : c.getRemoved()) {
+                if (inventoryModel.indexOf(gone.getProductId()) < 0) pageCache.remove(gone.getProductId());
+            }
         }
-
-        HBox headerRow = createTableRow("ID", "Name", "Price", "Quantity", "Expiry Date", true);
-        headerRow.setStyle("-fx-background-color: #4ECDC4; -fx-background-radius: 5;");
-        tableContainer.getChildren().add(headerRow);
-
-        for (int i = 0; i < uiProducts.size(); i++) {
-            Product p = uiProducts.get(i);
-            String expiryDate = (p instanceof PerishableProduct) ? ((PerishableProduct)p).getExpiryDate() : "N/A";
-            HBox dataRow = createTableRow(
-                    String.valueOf(p.getProductId()),
-                    p.getProductName(),
-                    "$"+String.format("%.2f",p.getPrice()),
-                    String.valueOf(p.getQuantity()),
-                    expiryDate,
-                    false
-            );
-            dataRow.setStyle(i%2==0 ? "-fx-background-color: #f8f9fa; -fx-background-radius: 5;" : "-fx-background-color: #ffffff; -fx-background-radius: 5;");
-            tableContainer.getChildren().add(dataRow);
+        viewPagination.setPageCount(Math.max(uiProducts.size(), 1));
+        if (affected && currentPage != null) {
+            currentPage.getChildren().setAll(createPageView(viewPagination.getCurrentPageIndex()));
         }
-
-
-        tableContainer.setMinHeight(Region.USE_PREF_SIZE);
-        tableScrollPane.setFitToHeight(true);
-        tableScrollPane.setVvalue(0); 
-    }
-
-    private Label createTableLabel(String text, double width, boolean isHeader) {
-        Label label = new Label(text); label.setPrefWidth(width); label.setMaxWidth(width); label.setPadding(new Insets(5)); label.setAlignment(Pos.CENTER);
-        if (isHeader) { label.setFont(Font.font("Segoe UI", FontWeight.BOLD, 14)); label.setTextFill(Color.WHITE); }
-        else { label.setFont(Font.font("Segoe UI", 14)); label.setTextFill(Color.BLACK); }
-        return label;
-    }
-
-    private void refreshViewPagination() {
-        int size = uiProducts.size();
-        viewPagination.setPageCount(Math.max(size, 1));
-        viewPagination.setPageFactory((index) -> createPageView(index));
-        if (size > 0) viewPagination.setCurrentPageIndex(Math.min(viewPagination.getCurrentPageIndex(), size - 1));
-        refreshTableView();
     }
 
     private void showStatus(Label label, String msg, Color color) {
@@ -604,7 +7230,7 @@ public class InventoryUI extends Application {
             showPaneWithAnimation(lookupPaneByName("home"));
         });
 
-        Text header = new Text("Search Product By ID");
+        Text header = new Text("Search Products");
         header.setFont(Font.font("Segoe UI", FontWeight.BOLD, 24));
         header.setFill(Color.web("#45B7D1"));
 
@@ -617,46 +7243,99 @@ public class InventoryUI extends Application {
         formContainer.setMaxWidth(400);
 
         TextField idField = new TextField();
-        idField.setPromptText("Product ID (integer)");
+        idField.setPromptText("Product ID or name");
         styleTextField(idField);
 
         Button findBtn = styledButton("Search Product", "#45B7D1", 160, 45); 
+        HBox busy = createBusyBox();
         Label result = new Label();
         result.setWrapText(true);
         result.setMaxWidth(350);
 
+        PauseTransition debounce = new PauseTransition(Duration.millis(SEARCH_DEBOUNCE_MS));
+        debounce.setOnFinished(e -> runLiveSearch(idField.getText(), result));
+        idField.textProperty().addListener((obs, oldV, newV) -> {
+            searchGeneration.incrementAndGet();
+            debounce.playFromStart();
+        });
+
         findBtn.setOnAction(e -> {
+            debounce.stop();
+            searchGeneration.incrementAndGet();
             try {
                 int id = Integer.parseInt(idField.getText().trim());
-                Product p = manager.findProductNull(id);
-                if (p != null) {
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("ID: ").append(p.getProductId()).append("\n");
-                    sb.append("Name: ").append(p.getProductName()).append("\n");
-                    sb.append("Price: $").append(String.format("%.2f", p.getPrice())).append("\n");
-                    sb.append("Quantity: ").append(p.getQuantity()).append("\n");
-                    if (p instanceof PerishableProduct) {
-                        sb.append("Expiry: ").append(((PerishableProduct)p).getExpiryDate()).append("\n");
-                    }
-                    result.setText(sb.toString());
+                runOperation(findBtn, busy, () -> {
+                    Product p = manager.findProductNull(id);
+                    if (p == null) throw new ProductNotFoundException("Product not Found");
+                    return describeProduct(p);
+                }, details -> {
+                    result.setText(details);
                     result.setTextFill(Color.BLACK);
-                } else {
-                    throw new ProductNotFoundException("Product not Found");
-                }
+                });
             } catch (NumberFormatException nfe) {
                 showExceptionDialog("Please enter a valid integer ID.");
-            } catch (ProductNotFoundException pnfe) {
-                showExceptionDialog(pnfe.getMessage());
-            } catch (Exception ex) {
-                showExceptionDialog("Error: " + ex.getMessage());
             }
         });
 
-        formContainer.getChildren().addAll(idField, findBtn, result);
+        formContainer.getChildren().addAll(idField, findBtn, busy, result);
         mainContainer.getChildren().addAll(headerBox, formContainer);
         return wrapNamedPane(mainContainer, "search");
     }
 
+    //Drops whatever query is still queued and starts one for the latest text. The search runs on the worker like
+    //every other manager read, so the FX thread never waits on it; a running one is left to finish rather than
+    //interrupted, since an interrupt on that thread would close the file and journal channels it also writes
+    private void runLiveSearch(String text, Label result) {
+        long generation = searchGeneration.incrementAndGet();
+        if (pendingSearch != null) pendingSearch.cancel(false);
+        String query = text.trim();
+        if (query.isEmpty()) {
+            pendingSearch = null;
+            result.setText("");
+            return;
+        }
+        pendingSearch = inventoryExecutor.submit(() -> {
+            String matches = liveSearch(query);
+            if (generation != searchGeneration.get()) return;
+            Platform.runLater(() -> {
+                if (generation != searchGeneration.get()) return;
+                result.setText(matches);
+                result.setTextFill(Color.BLACK);
+            });
+        });
+    }
+
+    //A numeric query is an exact ID lookup, anything else goes through the name index
+    private String liveSearch(String query) {
+        try {
+            Product p = manager.findProductNull(Integer.parseInt(query));
+            if (p != null) return describeProduct(p);
+        } catch (NumberFormatException nfe) {
+            //not an ID, fall through to the name search
+        }
+        java.util.List<Product> matches = nameIndex.search(query, LIVE_SEARCH_LIMIT);
+        if (matches.isEmpty()) return "No matching products.";
+        if (matches.size() == 1) return describeProduct(matches.get(0));
+        StringBuilder sb = new StringBuilder();
+        for (Product p : matches) {
+            sb.append(p.getProductId()).append(" - ").append(p.getProductName())
+              .append(" ($").append(String.format("%.2f", p.getPrice())).append(", qty ").append(p.getQuantity()).append(")\n");
+        }
+        return sb.toString();
+    }
+
+    private String describeProduct(Product p) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ID: ").append(p.getProductId()).append("\n");
+        sb.append("Name: ").append(p.getProductName()).append("\n");
+        sb.append("Price: $").append(String.format("%.2f", p.getPrice())).append("\n");
+        sb.append("Quantity: ").append(p.getQuantity()).append("\n");
+        if (p instanceof PerishableProduct) {
+            sb.append("Expiry: ").append(((PerishableProduct)p).getExpiryDate()).append("\n");
+        }
+        return sb.toString();
+    }
+
     private void resetSearchPane() {
         Pane searchPane = lookupPaneByName("search");
         if (searchPane != null) {
@@ -711,6 +7390,7 @@ public class InventoryUI extends Application {
         styleTextField(qtyField);
 
         Button updateBtn = styledButton("Update Product", "#FFBE0B", 160, 45); 
+        HBox busy = createBusyBox();
         Label status = new Label();
 
         updateBtn.setOnAction(e -> {
@@ -736,23 +7416,13 @@ public class InventoryUI extends Application {
                         throw new InvalidInputException("Invalid quantity format.");
                     }
                 }
-                try {
-                    manager.updateProductById(id, newPrice, newQty);
-                    for (int i = 0; i < uiProducts.size(); i++) {
-                        if (uiProducts.get(i).getProductId() == id) {
-                            Product p = uiProducts.get(i);
-                            if (newPrice != null) p.setPrice(newPrice);
-                            if (newQty != null) p.setQuantity(newQty);
-                            break;
-                        }
-                    }
+                Double price = newPrice;
+                Integer qty = newQty;
+                runOperation(updateBtn, busy, () -> { manager.updateProductById(id, price, qty); return null; }, done -> {
                     status.setText("✓ Product updated successfully!");
                     status.setTextFill(Color.GREEN);
                     status.setStyle("-fx-font-weight: bold;");
-                    refreshViewPagination();
-                } catch (ProductNotFoundException | InvalidInputException ex) {
-                    showExceptionDialog(ex.getMessage());
-                }
+                });
 
             } catch (NumberFormatException nfe) {
                 showExceptionDialog("Please enter a valid integer ID.");
@@ -763,7 +7433,7 @@ public class InventoryUI extends Application {
             }
         });
 
-        formContainer.getChildren().addAll(idField, priceField, qtyField, updateBtn, status);
+        formContainer.getChildren().addAll(idField, priceField, qtyField, updateBtn, busy, status);
         mainContainer.getChildren().addAll(headerBox, formContainer);
         return wrapNamedPane(mainContainer, "update");
     }
@@ -814,27 +7484,23 @@ public class InventoryUI extends Application {
         styleTextField(idField);
 
         Button delBtn = styledButton("Delete Product", "#FF6B6B", 160, 45); 
+        HBox busy = createBusyBox();
         Label status = new Label();
 
         delBtn.setOnAction(e -> {
             try {
                 int id = Integer.parseInt(idField.getText().trim());
-                try {
-                    manager.deleteProductById(id);
-                    uiProducts.removeIf(p -> p.getProductId() == id);
+                runOperation(delBtn, busy, () -> { manager.deleteProductById(id); return null; }, done -> {
                     status.setText("✓ Product deleted successfully!");
                     status.setTextFill(Color.GREEN);
                     status.setStyle("-fx-font-weight: bold;");
-                    refreshViewPagination();
-                } catch (ProductNotFoundException pnfe) {
-                    showExceptionDialog(pnfe.getMessage());
-                }
+                });
             } catch (NumberFormatException nfe) {
                 showExceptionDialog("Please enter a valid integer ID.");
             }
         });
 
-        formContainer.getChildren().addAll(idField, delBtn, status);
+        formContainer.getChildren().addAll(idField, delBtn, busy, status);
         mainContainer.getChildren().addAll(headerBox, formContainer);
         return wrapNamedPane(mainContainer, "delete");
     }